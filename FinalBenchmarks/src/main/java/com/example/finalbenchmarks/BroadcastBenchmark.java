@@ -0,0 +1,86 @@
+package com.example.finalbenchmarks;
+
+import com.example.finalserver.ClientConnection;
+import com.example.finalserver.ClientExecutors;
+import com.example.finalserver.MessageFrame;
+import com.example.finalserver.RoomIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fan-out of one chat line to every member of a room, as ChatServer.broadcastMessage does it:
+ * encode once, then queue the shared frame to each recipient's connection. The recipients'
+ * writer tasks drain into a null socket on the configured client executor in the background.
+ * <p>
+ * The fork pins the drop-newest slow-consumer policy: under the default, a recipient whose
+ * writer falls behind the measurement loop would be disconnected, and the remaining
+ * iterations would time sends to closed connections. Tear-down fails the run if any were.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.slowConsumer.policy=drop-newest")
+public class BroadcastBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    public int recipients;
+
+    @Param({"false", "true"})
+    public boolean binary;
+
+    private RoomIndex<ClientConnection> rooms;
+    private List<ClientConnection> connections;
+    private ExecutorService writers;
+
+    @Setup
+    public void setUp() {
+        writers = ClientExecutors.newClientExecutor("bench-writer");
+        rooms = new RoomIndex<>();
+        connections = new ArrayList<>(recipients);
+        for (int i = 0; i < recipients; i++) {
+            ClientConnection connection = new ClientConnection("user" + i, new NullSocket(), writers, binary);
+            connections.add(connection);
+            rooms.join(connection, RoomIndex.DEFAULT_ROOM);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        int evicted = 0;
+        for (ClientConnection connection : connections) {
+            if (connection.isEvicted()) {
+                evicted++;
+            }
+            connection.close();
+        }
+        writers.shutdown();
+        if (evicted > 0) {
+            throw new IllegalStateException(evicted + " of " + recipients + " recipients were evicted during the run");
+        }
+    }
+
+    @Benchmark
+    public MessageFrame broadcast() {
+        MessageFrame frame = MessageFrame.chat("alice", "Hello everyone, how is it going?");
+        for (ClientConnection connection : rooms.members(RoomIndex.DEFAULT_ROOM)) {
+            connection.deliver(frame);
+        }
+        return frame;
+    }
+}
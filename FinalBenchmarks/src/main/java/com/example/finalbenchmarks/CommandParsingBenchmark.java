@@ -0,0 +1,97 @@
+package com.example.finalbenchmarks;
+
+import com.example.finalserver.ClientReader;
+import com.example.finalserver.InboundMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading and classifying client lines the way Server.ClientHandler does: ClientReader splits
+ * the stream into lines, then the command is picked by {@code startsWith} and its arguments by
+ * {@code split(" ")}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParsingBenchmark {
+    private static final int LINES = 1000;
+
+    @Param({"chat", "login", "signup", "join"})
+    public String kind;
+
+    private byte[] input;
+    private String line;
+
+    @Setup
+    public void setUp() {
+        switch (kind) {
+            case "login":
+                line = "LOGIN alice secret123";
+                break;
+            case "signup":
+                line = "SIGNUP alice secret123";
+                break;
+            case "join":
+                line = "JOIN general";
+                break;
+            default:
+                line = "alice: Hello everyone, how is it going today?";
+                break;
+        }
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            builder.append(line).append('\n');
+        }
+        input = builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void readAndDispatch(Blackhole blackhole) throws IOException {
+        ClientReader reader = new ClientReader(new ByteArrayInputStream(input));
+        InboundMessage message;
+        while ((message = reader.read()) != null) {
+            blackhole.consume(dispatch(message.text()));
+        }
+    }
+
+    @Benchmark
+    public Object dispatchOnly() {
+        return dispatch(line);
+    }
+
+    // Same order of checks as Server.ClientHandler.handleMessage
+    private static Object dispatch(String text) {
+        if (text.startsWith("SIGNUP")) {
+            return text.split(" ");
+        } else if (text.startsWith("LOGIN")) {
+            return text.split(" ");
+        } else if (text.startsWith("JOIN ")) {
+            return text.substring(5).trim();
+        } else if (text.startsWith("LEAVE ")) {
+            return text.substring(6).trim();
+        } else if (text.startsWith("REPLAY ")) {
+            return text.substring(7).trim();
+        }
+        return text;
+    }
+}
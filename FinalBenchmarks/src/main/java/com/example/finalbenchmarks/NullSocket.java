@@ -0,0 +1,16 @@
+package com.example.finalbenchmarks;
+
+import java.io.OutputStream;
+import java.net.Socket;
+
+// An unconnected socket whose output goes nowhere, so writer tasks run without real I/O
+final class NullSocket extends Socket {
+    @Override
+    public OutputStream getOutputStream() {
+        return OutputStream.nullOutputStream();
+    }
+
+    @Override
+    public synchronized void close() {
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.finalbenchmarks;
+
+import com.example.finalserver.ClientRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client registry churn from many handler threads at once (log in, then disconnect), alone and
+ * while a broadcaster keeps iterating the registered clients.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistryBenchmark {
+    private static final int RESIDENT_CLIENTS = 1000;
+
+    @State(Scope.Benchmark)
+    public static class Registry {
+        final ClientRegistry<Object> registry = new ClientRegistry<>();
+        final AtomicInteger threadIds = new AtomicInteger();
+
+        @Setup
+        public void setUp() {
+            for (int i = 0; i < RESIDENT_CLIENTS; i++) {
+                registry.add("resident" + i, new Object());
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        String username;
+        Object client;
+
+        @Setup
+        public void setUp(Registry shared) {
+            username = "churn" + shared.threadIds.incrementAndGet();
+            client = new Object();
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void addRemove(Registry shared, Client client) {
+        shared.registry.add(client.username, client.client);
+        shared.registry.remove(client.username, client.client);
+    }
+
+    @Benchmark
+    @Group("churnWhileBroadcasting")
+    @GroupThreads(3)
+    public void churn(Registry shared, Client client) {
+        shared.registry.add(client.username, client.client);
+        shared.registry.remove(client.username, client.client);
+    }
+
+    @Benchmark
+    @Group("churnWhileBroadcasting")
+    @GroupThreads(1)
+    public void iterate(Registry shared, Blackhole blackhole) {
+        for (Object client : shared.registry.clients()) {
+            blackhole.consume(client);
+        }
+    }
+}
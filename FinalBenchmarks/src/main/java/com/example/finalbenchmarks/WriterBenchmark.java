@@ -0,0 +1,72 @@
+package com.example.finalbenchmarks;
+
+import com.example.finalserver.MessageFrame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-message encode and write for one recipient: the original BufferedWriter write+flush per
+ * line, against encoding a MessageFrame and writing its buffer, or only writing a duplicate of a
+ * frame that was already encoded for another recipient of the same broadcast.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriterBenchmark {
+    @Param({"16", "256", "4096"})
+    public int messageLength;
+
+    private String message;
+    private BufferedWriter writer;
+    private WritableByteChannel channel;
+    private MessageFrame shared;
+
+    @Setup
+    public void setUp() {
+        message = "x".repeat(messageLength);
+        writer = new BufferedWriter(new OutputStreamWriter(OutputStream.nullOutputStream()));
+        channel = Channels.newChannel(OutputStream.nullOutputStream());
+        shared = MessageFrame.chat("alice", message);
+    }
+
+    @Benchmark
+    public void writerLinePerMessage() throws IOException {
+        writer.write("alice: " + message + "\n");
+        writer.flush();
+    }
+
+    @Benchmark
+    public int encodeLineFrame() throws IOException {
+        return channel.write(MessageFrame.chat("alice", message).lineBuffer());
+    }
+
+    @Benchmark
+    public int encodeBinaryFrame() throws IOException {
+        return channel.write(MessageFrame.chat("alice", message).binaryBuffer());
+    }
+
+    @Benchmark
+    public int writeSharedFrame() throws IOException {
+        return channel.write(shared.lineBuffer());
+    }
+}
@@ -16,42 +16,69 @@ import javafx.stage.Stage;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public class ChatClient extends Application {
-    private TextArea chatTextArea;
+    private MessageListView messageListView;
     private TextField messageTextField;
+    private TextField roomTextField;
     private TextField usernameTextField;
     private PasswordField passwordTextField;
     private String currentUsername;
     private boolean isBusy;
+    // Journal sequence up to which this client has every message of its rooms, in the server
+    // journal named by journalId; after a reconnect the server replays what came after it
+    private volatile long replayPosition;
+    // Highest REPLAY_AT seen; runs ahead of replayPosition while a replay is catching up
+    private volatile long seenPosition;
+    private volatile String journalId;
+    private volatile boolean awaitingJournal;
+    private volatile boolean replaying;
+    // Rooms joined, the active one last, so a reconnect rejoins them before asking for a replay
+    private final Set<String> joinedRooms = new LinkedHashSet<>();
     private Map<String, String> userCredentials; // User credentials (username and password)
-    private List<String> chatLog; // Chat log
+    private ChatLog chatLog; // Written to disk as it grows unless chat.log.incremental=false
     private ComboBox<String> availabilityComboBox;
 
     private Socket socket;
     private BufferedReader reader;
     private BufferedWriter writer;
+    // Used instead of reader/writer when the binary frame protocol is negotiated
+    private DataInputStream frameReader;
+    private OutputStream frameWriter;
+    // Set when the server agreed to compressed frames
+    private FrameProtocol.Compressor compressor;
 
-    private static final String SERVER_ADDRESS = "localhost";
-    private static final int SERVER_PORT = 5570;
+    // Any node of a cluster will do
+    private static final String SERVER_ADDRESS = System.getProperty("chat.host", "localhost");
+    private static final int SERVER_PORT = Integer.getInteger("chat.port", 5570);
 
     public static void main(String[] args) {
         launch(args);
     }
 
+    @Override
+    public void stop() {
+        if (chatLog != null) {
+            chatLog.close();
+        }
+    }
+
     @Override
     public void start(Stage primaryStage) {
         primaryStage.setTitle("Chat Client");
 
         // Initialize user credentials and chat log
         userCredentials = new HashMap<>();
-        chatLog = new ArrayList<>();
+        chatLog = ChatLog.open("chatlog");
 
         // Create login and signup views
         VBox loginVBox = createLoginView();
@@ -62,8 +89,8 @@ public class ChatClient extends Application {
         chatRoomPane.setPadding(new Insets(10));
         chatRoomPane.setPrefSize(400, 300);
 
-        chatTextArea = new TextArea();
-        chatTextArea.setEditable(false);
+        messageListView = new MessageListView();
+        chatLog.onFailure(reason -> messageListView.post("Chat log stopped saving to disk: " + reason));
 
         messageTextField = new TextField();
         messageTextField.setOnAction(e -> sendMessage());
@@ -74,7 +101,7 @@ public class ChatClient extends Application {
         HBox messageBox = new HBox(10, messageTextField, sendButton);
         messageBox.setAlignment(Pos.CENTER);
 
-        chatRoomPane.setCenter(chatTextArea);
+        chatRoomPane.setCenter(messageListView);
         chatRoomPane.setBottom(messageBox);
 
         // Create main scene
@@ -140,6 +167,11 @@ public class ChatClient extends Application {
             primaryStage.setTitle("Chat Client - Login");
             currentUsername = null;
             disconnectFromServer();
+            // The next user starts with no rooms and no history to catch up on
+            joinedRooms.clear();
+            journalId = null;
+            replayPosition = 0;
+            seenPosition = 0;
         });
 
         // Create "Save Chat Log" button
@@ -149,16 +181,28 @@ public class ChatClient extends Application {
         // Create availability radio buttons
         RadioButton availableRadioButton = new RadioButton("Available");
         availableRadioButton.setSelected(true);
-        availableRadioButton.setOnAction(e -> isBusy = false);
+        availableRadioButton.setOnAction(e -> setBusy(false));
 
         RadioButton busyRadioButton = new RadioButton("Busy");
-        busyRadioButton.setOnAction(e -> isBusy = true);
+        busyRadioButton.setOnAction(e -> setBusy(true));
 
         ToggleGroup availabilityToggleGroup = new ToggleGroup();
         availableRadioButton.setToggleGroup(availabilityToggleGroup);
         busyRadioButton.setToggleGroup(availabilityToggleGroup);
 
         HBox availabilityBox = new HBox(10, availableRadioButton, busyRadioButton);
+
+        // Join or leave a room; messages go to the room joined last
+        roomTextField = new TextField();
+        roomTextField.setPromptText("Room");
+
+        Button joinRoomButton = new Button("Join");
+        joinRoomButton.setOnAction(e -> sendRoomCommand("JOIN"));
+
+        Button leaveRoomButton = new Button("Leave");
+        leaveRoomButton.setOnAction(e -> sendRoomCommand("LEAVE"));
+
+        HBox roomBox = new HBox(10, roomTextField, joinRoomButton, leaveRoomButton);
         availabilityBox.setAlignment(Pos.CENTER_RIGHT);
 
         // Create text fields and password field
@@ -188,9 +232,9 @@ public class ChatClient extends Application {
         signupVBox.getChildren().addAll(signupBox);
 
         // Create the layout for the chat room view
-        VBox.setVgrow(chatTextArea, Priority.ALWAYS);
+        VBox.setVgrow(messageListView, Priority.ALWAYS);
 
-        VBox chatRoomBox = new VBox(10, chatTextArea);
+        VBox chatRoomBox = new VBox(10, messageListView);
         chatRoomBox.setAlignment(Pos.CENTER);
 
         VBox chatRoomButtons = new VBox(10, saveChatLogButton, logoutButton);
@@ -202,7 +246,7 @@ public class ChatClient extends Application {
         HBox.setHgrow(chatRoomBox, Priority.ALWAYS);
 
         VBox chatRoomControlsContainer = new VBox(10);
-        chatRoomControlsContainer.getChildren().addAll(availabilityBox, chatRoomControls);
+        chatRoomControlsContainer.getChildren().addAll(availabilityBox, roomBox, chatRoomControls);
 
         VBox chatRoomContainer = new VBox(10, chatRoomControlsContainer);
         chatRoomContainer.setAlignment(Pos.CENTER);
@@ -226,7 +270,7 @@ public class ChatClient extends Application {
         String message = messageTextField.getText();
         if (!message.isEmpty()) {
             String formattedMessage = "[" + currentUsername + "]: " + message;
-            chatTextArea.appendText(formattedMessage + "\n");
+            messageListView.post(formattedMessage);
             chatLog.add(formattedMessage);
             messageTextField.clear();
 
@@ -235,6 +279,26 @@ public class ChatClient extends Application {
         }
     }
 
+    // The server holds room traffic while we are busy and sends it as one digest when we are back
+    private void setBusy(boolean busy) {
+        isBusy = busy;
+        if (socket != null && !socket.isClosed()) {
+            sendCommandToServer(busy ? "busy" : "available");
+        }
+    }
+
+    private void sendRoomCommand(String command) {
+        String room = roomTextField.getText().trim();
+        if (!room.isEmpty()) {
+            joinedRooms.remove(room);
+            if (command.equals("JOIN")) {
+                joinedRooms.add(room);
+            }
+            sendCommandToServer(command + " " + room);
+            roomTextField.clear();
+        }
+    }
+
     private void showErrorAlert(String message) {
         Alert alert = new Alert(Alert.AlertType.ERROR);
         alert.setTitle("Error");
@@ -256,16 +320,34 @@ public class ChatClient extends Application {
             socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
             InputStream inputStream = socket.getInputStream();
             OutputStream outputStream = socket.getOutputStream();
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-            writer = new BufferedWriter(new OutputStreamWriter(outputStream));
+            if (FrameProtocol.ENABLED) {
+                compressor = FrameProtocol.negotiate(inputStream, outputStream);
+                frameReader = new DataInputStream(new BufferedInputStream(inputStream));
+                frameWriter = new BufferedOutputStream(outputStream);
+            } else {
+                reader = new BufferedReader(new InputStreamReader(inputStream));
+                writer = new BufferedWriter(new OutputStreamWriter(outputStream));
+            }
 
             // Start a new thread for receiving messages from the server
             Thread receiveThread = new Thread(this::receiveMessages);
             receiveThread.start();
 
             // Notify the server about the client's username and availability
-            sendMessageToServer(currentUsername);
-            sendMessageToServer(isBusy ? "busy" : "available");
+            if (frameWriter != null) {
+                sendFrameToServer(FrameProtocol.HELLO, currentUsername);
+                sendFrameToServer(FrameProtocol.COMMAND, isBusy ? "busy" : "available");
+            } else {
+                sendMessageToServer(currentUsername);
+                sendMessageToServer(isBusy ? "busy" : "available");
+            }
+            // Back into the same rooms first, so the replay covers them
+            for (String room : joinedRooms) {
+                sendCommandToServer("JOIN " + room);
+            }
+            awaitingJournal = true;
+            replaying = false;
+            sendCommandToServer("REPLAY TRACK");
         } catch (IOException e) {
             showErrorAlert("Failed to connect to the server.");
         }
@@ -282,6 +364,10 @@ public class ChatClient extends Application {
     }
 
     private void sendMessageToServer(String message) {
+        if (frameWriter != null) {
+            sendFrameToServer(FrameProtocol.CHAT, message);
+            return;
+        }
         try {
             writer.write(message + "\n");
             writer.flush();
@@ -290,10 +376,27 @@ public class ChatClient extends Application {
         }
     }
 
+    // Commands travel as COMMAND frames in binary mode so they are never relayed as chat
+    private void sendCommandToServer(String command) {
+        if (frameWriter != null) {
+            sendFrameToServer(FrameProtocol.COMMAND, command);
+        } else {
+            sendMessageToServer(command);
+        }
+    }
+
+    private void sendFrameToServer(byte opcode, String message) {
+        try {
+            FrameProtocol.writeFrame(frameWriter, opcode, message, compressor);
+        } catch (IOException e) {
+            showErrorAlert("Failed to send message to the server.");
+        }
+    }
+
     private void receiveMessages() {
         try {
             String message;
-            while ((message = reader.readLine()) != null) {
+            while ((message = frameReader != null ? FrameProtocol.readMessage(frameReader, compressor) : reader.readLine()) != null) {
                 // Process received messages from the server
                 processMessageFromServer(message);
             }
@@ -304,18 +407,89 @@ public class ChatClient extends Application {
     }
 
     private void processMessageFromServer(String message) {
+        if (FrameProtocol.PING.equals(message)) {
+            sendCommandToServer(FrameProtocol.PONG);
+            return;
+        }
+        if (message.startsWith("REPLAY_")) {
+            processReplayMessage(message);
+            return;
+        }
+
         // Handle the received message from the server
-        chatTextArea.appendText(message + "\n");
+        // Queued here and added to the list on the next frame
+        messageListView.post(message);
         chatLog.add(message);
     }
 
+    // Journal positions as sent by the server; the client's own clock is never involved
+    private void processReplayMessage(String message) {
+        String[] parts = message.split(" ", 3);
+        switch (parts[0]) {
+            case "REPLAY_AT":
+                if (!awaitingJournal) {
+                    seenPosition = Math.max(seenPosition, Long.parseLong(parts[1]));
+                    if (!replaying) {
+                        replayPosition = seenPosition;
+                    }
+                }
+                break;
+            case "REPLAY_JOURNAL":
+                long last = Long.parseLong(parts[2]);
+                if (parts[1].equals(journalId) && replayPosition < last) {
+                    replaying = true;
+                    seenPosition = replayPosition;
+                    sendCommandToServer("REPLAY " + replayPosition);
+                } else {
+                    // First connection, or a journal whose sequences ours cannot be compared with
+                    replayPosition = last;
+                    seenPosition = last;
+                }
+                journalId = parts[1];
+                awaitingJournal = false;
+                break;
+            case "REPLAY_MORE":
+                // Replay is paged: keep asking until the server has sent everything we missed
+                replayPosition = Math.max(replayPosition, Long.parseLong(parts[1]));
+                sendCommandToServer("REPLAY " + parts[1]);
+                break;
+            case "REPLAY_LATER":
+                CompletableFuture.delayedExecutor(Long.parseLong(parts[1]), TimeUnit.MILLISECONDS)
+                        .execute(() -> sendCommandToServer("REPLAY " + parts[2]));
+                break;
+            case "REPLAY_END":
+                // Live messages that arrived during the replay are covered as well now
+                replayPosition = Math.max(Long.parseLong(parts[1]), seenPosition);
+                replaying = false;
+                break;
+            default:
+                // REPLAY_UNAVAILABLE: the server keeps no journal
+                awaitingJournal = false;
+                replaying = false;
+                break;
+        }
+    }
+
     private void saveChatLog() {
+        if (chatLog.failure() != null) {
+            // Only the newest messages are left; save those the old way
+            showErrorAlert("The chat log stopped saving to disk (" + chatLog.failure()
+                    + "). Saving the last " + chatLog.recent().size() + " messages instead.");
+        } else if (chatLog.isIncremental()) {
+            // Already on disk; just make sure the latest messages are too
+            chatLog.sync();
+            Path file = chatLog.file();
+            showInfoAlert(file != null ? "Chat log is saved continuously to: " + file.toAbsolutePath()
+                    : "No messages to save yet.");
+            return;
+        }
+
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
         String timestamp = LocalDateTime.now().format(formatter);
         String fileName = "chatlog_" + timestamp + ".txt";
 
         try (PrintWriter writer = new PrintWriter(fileName)) {
-            for (String message : chatLog) {
+            for (String message : chatLog.recent()) {
                 writer.println(message);
             }
             showInfoAlert("Chat log saved to file: " + fileName);
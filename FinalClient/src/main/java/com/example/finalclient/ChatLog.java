@@ -0,0 +1,239 @@
+package com.example.finalclient;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The session's chat log. In incremental mode (the default) every message is appended to a file
+ * by a background writer as it arrives, fsynced every {@code chat.log.syncMillis} and rolled to a
+ * new file past {@code chat.log.maxFileBytes}, and only the newest messages stay in memory.
+ * With {@code -Dchat.log.incremental=false} everything is kept in memory until saved, as before.
+ * If the file can't be written the log stops queueing and only the newest messages are kept.
+ */
+public class ChatLog {
+    public static final boolean INCREMENTAL = Boolean.parseBoolean(System.getProperty("chat.log.incremental", "true"));
+    public static final String DIRECTORY = System.getProperty("chat.log.dir", "chat-logs");
+    public static final int RECENT_MESSAGES = Integer.getInteger("chat.log.recentMessages", 1000);
+    public static final long MAX_FILE_BYTES = Long.getLong("chat.log.maxFileBytes", 16L << 20);
+    public static final long SYNC_MILLIS = Long.getLong("chat.log.syncMillis", 1000);
+
+    // Markers for the writer, compared by identity
+    private static final String SYNC = new String("sync");
+    private static final String CLOSE = new String("close");
+
+    private final String prefix;
+    private final int capacity;
+    private final ArrayDeque<String> recent = new ArrayDeque<>();
+    // Null unless incremental
+    private final BlockingQueue<String> pending;
+    private final Thread writerThread;
+    private volatile Path file;
+    // Why the writer stopped, or null while it is running
+    private volatile String failure;
+    private Consumer<String> failureListener;
+
+    // Only touched by the writer thread
+    private FileChannel channel;
+    private BufferedWriter writer;
+    private long fileBytes;
+    private int fileIndex;
+    private boolean dirty;
+
+    public ChatLog(String prefix, boolean incremental) {
+        this.prefix = prefix + "_" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
+        if (incremental) {
+            capacity = Math.max(1, RECENT_MESSAGES);
+            pending = new LinkedBlockingQueue<>();
+            writerThread = new Thread(this::writeLoop, "chat-log-writer");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        } else {
+            capacity = Integer.MAX_VALUE;
+            pending = null;
+            writerThread = null;
+        }
+    }
+
+    public static ChatLog open(String prefix) {
+        return new ChatLog(prefix, INCREMENTAL);
+    }
+
+    // Safe from any thread
+    public void add(String message) {
+        synchronized (recent) {
+            recent.add(message);
+            if (recent.size() > capacity) {
+                recent.poll();
+            }
+        }
+        if (pending != null && failure == null) {
+            pending.add(message);
+        }
+    }
+
+    // Called once if the log stops writing, on the writer thread or right away if it already has
+    public synchronized void onFailure(Consumer<String> listener) {
+        failureListener = listener;
+        if (failure != null) {
+            listener.accept(failure);
+        }
+    }
+
+    // The messages held in memory: the newest ones in incremental mode, otherwise all of them
+    public List<String> recent() {
+        synchronized (recent) {
+            return new ArrayList<>(recent);
+        }
+    }
+
+    public boolean isIncremental() {
+        return pending != null;
+    }
+
+    // The file currently being written, or null if nothing has been written yet
+    public Path file() {
+        return file;
+    }
+
+    // Why the log stopped writing to disk, or null if it hasn't
+    public String failure() {
+        return failure;
+    }
+
+    // Asks the writer to flush and fsync now instead of at the next interval
+    public void sync() {
+        if (pending != null && failure == null) {
+            pending.add(SYNC);
+        }
+    }
+
+    // Writes out what is queued, fsyncs and stops the writer
+    public void close() {
+        if (pending == null) {
+            return;
+        }
+        pending.add(CLOSE);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(2));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        long nextSync = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SYNC_MILLIS);
+        List<String> batch = new ArrayList<>();
+        try {
+            while (true) {
+                long waitNanos = nextSync - System.nanoTime();
+                String first = pending.poll(Math.max(0, waitNanos), TimeUnit.NANOSECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    pending.drainTo(batch);
+                }
+                boolean syncNow = System.nanoTime() - nextSync >= 0;
+                boolean closing = false;
+                for (String message : batch) {
+                    if (message == SYNC) {
+                        syncNow = true;
+                    } else if (message == CLOSE) {
+                        closing = true;
+                        break;
+                    } else {
+                        write(message);
+                    }
+                }
+                batch.clear();
+                if (syncNow || closing) {
+                    sync(closing);
+                    nextSync = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SYNC_MILLIS);
+                }
+                if (closing) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.err.println("Chat log writer stopped: " + e.getMessage());
+            fail(String.valueOf(e.getMessage()));
+        } finally {
+            closeFile();
+        }
+    }
+
+    // Nothing drains the queue from here on, so stop filling it
+    private synchronized void fail(String reason) {
+        failure = reason;
+        pending.clear();
+        if (failureListener != null) {
+            failureListener.accept(reason);
+        }
+    }
+
+    private void write(String message) throws IOException {
+        if (writer == null || fileBytes >= MAX_FILE_BYTES) {
+            roll();
+        }
+        writer.write(message);
+        writer.newLine();
+        // Characters, which is close enough to bytes for deciding when to roll
+        fileBytes += message.length() + 1;
+        dirty = true;
+    }
+
+    private void roll() throws IOException {
+        closeFile();
+        Path directory = Paths.get(DIRECTORY);
+        Files.createDirectories(directory);
+        String name = prefix + (fileIndex == 0 ? "" : "_" + fileIndex) + ".txt";
+        fileIndex++;
+        Path next = directory.resolve(name);
+        channel = FileChannel.open(next, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8));
+        fileBytes = channel.size();
+        file = next;
+    }
+
+    // Data only; file metadata such as the modification time can wait for the OS
+    private void sync(boolean closing) throws IOException {
+        if (writer == null || (!dirty && !closing)) {
+            return;
+        }
+        writer.flush();
+        channel.force(false);
+        dirty = false;
+    }
+
+    private void closeFile() {
+        if (writer != null) {
+            try {
+                writer.flush();
+                channel.force(false);
+                writer.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            writer = null;
+            channel = null;
+        }
+    }
+}
@@ -13,29 +13,35 @@ import javafx.stage.Stage;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.file.Path;
 import java.sql.*;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 public class Client extends Application {
-    private TextArea chatTextArea;
+    private MessageListView messageListView;
     private TextField messageTextField;
+    private TextField roomTextField;
     private TextField usernameTextField;
     private PasswordField passwordTextField;
     private String currentUsername;
     private boolean isBusy;
     private Map<String, String> userCredentials; // User credentials (username and password)
-    private List<String> chatLog; // Chat log
+    private ChatLog chatLog; // Written to disk as it grows unless chat.log.incremental=false
     private ComboBox<String> availabilityComboBox;
 
     private Socket socket;
     private BufferedReader reader;
     private BufferedWriter writer;
+    // Used instead of reader/writer when the binary frame protocol is negotiated
+    private DataInputStream frameReader;
+    private OutputStream frameWriter;
+    // Set when the server agreed to compressed frames
+    private FrameProtocol.Compressor compressor;
 
-    private static final String SERVER_ADDRESS = "localhost";
-    private static final int SERVER_PORT = 5570;
+    // Any node of a cluster will do
+    private static final String SERVER_ADDRESS = System.getProperty("chat.host", "localhost");
+    private static final int SERVER_PORT = Integer.getInteger("chat.port", 5570);
 
     // Database connection details
     private static final String DB_URL = "jdbc:mysql://localhost:3306/db";
@@ -48,13 +54,20 @@ public class Client extends Application {
         launch(args);
     }
 
+    @Override
+    public void stop() {
+        if (chatLog != null) {
+            chatLog.close();
+        }
+    }
+
     @Override
     public void start(Stage primaryStage) {
         primaryStage.setTitle("Chat Client");
 
         // Initialize user credentials and chat log
         userCredentials = new HashMap<>();
-        chatLog = new ArrayList<>();
+        chatLog = ChatLog.open("chat_log");
 
         // Establish database connection
         try {
@@ -73,8 +86,8 @@ public class Client extends Application {
         chatRoomPane.setPadding(new Insets(10));
         chatRoomPane.setPrefSize(400, 300);
 
-        chatTextArea = new TextArea();
-        chatTextArea.setEditable(false);
+        messageListView = new MessageListView();
+        chatLog.onFailure(reason -> messageListView.post("Chat log stopped saving to disk: " + reason));
 
         messageTextField = new TextField();
         messageTextField.setOnAction(e -> sendMessage());
@@ -85,7 +98,7 @@ public class Client extends Application {
         HBox messageBox = new HBox(10, messageTextField, sendButton);
         messageBox.setAlignment(Pos.CENTER);
 
-        chatRoomPane.setCenter(chatTextArea);
+        chatRoomPane.setCenter(messageListView);
         chatRoomPane.setBottom(messageBox);
 
         // Create main scene
@@ -182,6 +195,18 @@ public class Client extends Application {
         busyRadioButton.setToggleGroup(availabilityToggleGroup);
 
         HBox availabilityBox = new HBox(10, availableRadioButton, busyRadioButton);
+
+        // Join or leave a room; messages go to the room joined last
+        roomTextField = new TextField();
+        roomTextField.setPromptText("Room");
+
+        Button joinRoomButton = new Button("Join");
+        joinRoomButton.setOnAction(e -> sendRoomCommand("JOIN"));
+
+        Button leaveRoomButton = new Button("Leave");
+        leaveRoomButton.setOnAction(e -> sendRoomCommand("LEAVE"));
+
+        HBox roomBox = new HBox(10, roomTextField, joinRoomButton, leaveRoomButton);
         availabilityBox.setAlignment(Pos.CENTER_RIGHT);
 
         // Create text fields and password field
@@ -211,9 +236,9 @@ public class Client extends Application {
         signupVBox.getChildren().addAll(signupBox);
 
         // Create the layout for the chat room view
-        VBox.setVgrow(chatTextArea, Priority.ALWAYS);
+        VBox.setVgrow(messageListView, Priority.ALWAYS);
 
-        VBox chatRoomBox = new VBox(10, chatTextArea);
+        VBox chatRoomBox = new VBox(10, messageListView);
         chatRoomBox.setAlignment(Pos.CENTER);
 
         VBox chatRoomButtons = new VBox(10, saveChatLogButton, logoutButton);
@@ -225,7 +250,7 @@ public class Client extends Application {
         HBox.setHgrow(chatRoomBox, Priority.ALWAYS);
 
         VBox chatRoomControlsContainer = new VBox(10);
-        chatRoomControlsContainer.getChildren().addAll(availabilityBox, chatRoomControls);
+        chatRoomControlsContainer.getChildren().addAll(availabilityBox, roomBox, chatRoomControls);
 
         chatRoomPane.setTop(chatRoomControlsContainer);
     }
@@ -285,8 +310,14 @@ public class Client extends Application {
     private void connectToServer() {
         try {
             socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            if (FrameProtocol.ENABLED) {
+                compressor = FrameProtocol.negotiate(socket.getInputStream(), socket.getOutputStream());
+                frameReader = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                frameWriter = new BufferedOutputStream(socket.getOutputStream());
+            } else {
+                reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            }
 
             new Thread(this::receiveMessages).start();
         } catch (IOException e) {
@@ -310,8 +341,13 @@ public class Client extends Application {
     private void receiveMessages() {
         try {
             String message;
-            while ((message = reader.readLine()) != null) {
-                chatTextArea.appendText(message + "\n");
+            while ((message = frameReader != null ? FrameProtocol.readMessage(frameReader, compressor) : reader.readLine()) != null) {
+                if (FrameProtocol.PING.equals(message)) {
+                    sendPong();
+                    continue;
+                }
+                // Queued here and added to the list on the next frame
+                messageListView.post(message);
                 chatLog.add(message);
             }
         } catch (IOException e) {
@@ -323,8 +359,12 @@ public class Client extends Application {
         String message = messageTextField.getText();
         if (!message.isEmpty()) {
             try {
-                writer.write(message + "\n");
-                writer.flush();
+                if (frameWriter != null) {
+                    FrameProtocol.writeFrame(frameWriter, FrameProtocol.CHAT, message, compressor);
+                } else {
+                    writer.write(message + "\n");
+                    writer.flush();
+                }
                 messageTextField.clear();
                 chatLog.add(currentUsername + ": " + message);
             } catch (IOException e) {
@@ -333,10 +373,52 @@ public class Client extends Application {
         }
     }
 
+    // Answers the server's heartbeat so a quiet session is not timed out
+    private void sendPong() throws IOException {
+        if (frameWriter != null) {
+            FrameProtocol.writeFrame(frameWriter, FrameProtocol.COMMAND, FrameProtocol.PONG, compressor);
+        } else {
+            writer.write(FrameProtocol.PONG + "\n");
+            writer.flush();
+        }
+    }
+
+    private void sendRoomCommand(String command) {
+        String room = roomTextField.getText().trim();
+        if (room.isEmpty()) {
+            return;
+        }
+        try {
+            // Commands travel as COMMAND frames in binary mode so they are never relayed as chat
+            if (frameWriter != null) {
+                FrameProtocol.writeFrame(frameWriter, FrameProtocol.COMMAND, command + " " + room, compressor);
+            } else {
+                writer.write(command + " " + room + "\n");
+                writer.flush();
+            }
+            roomTextField.clear();
+        } catch (IOException e) {
+            showErrorAlert("Failed to send message to the server.");
+        }
+    }
+
     private void saveChatLog() {
+        if (chatLog.failure() != null) {
+            // Only the newest messages are left; save those the old way
+            showErrorAlert("The chat log stopped saving to disk (" + chatLog.failure()
+                    + "). Saving the last " + chatLog.recent().size() + " messages instead.");
+        } else if (chatLog.isIncremental()) {
+            // Already on disk; just make sure the latest messages are too
+            chatLog.sync();
+            Path path = chatLog.file();
+            showAlert(Alert.AlertType.INFORMATION, "Chat Log Saved", path != null
+                    ? "The chat log is saved continuously to " + path.toAbsolutePath() : "No messages to save yet.");
+            return;
+        }
+
         File file = new File("chat_log.txt");
         try (PrintWriter writer = new PrintWriter(file)) {
-            for (String message : chatLog) {
+            for (String message : chatLog.recent()) {
                 writer.println(message);
             }
             writer.flush();
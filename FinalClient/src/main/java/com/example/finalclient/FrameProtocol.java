@@ -0,0 +1,267 @@
+package com.example.finalclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Client side of the server's length-prefixed binary framing, enabled with
+ * {@code -Dchat.protocol=binary}. After the text handshake every message is sent as
+ * {@code [opcode:1][payload length:4, big-endian][payload]}, so chat text may contain newlines.
+ * With {@code -Dchat.compression=deflate} as well, frames of at least
+ * {@code chat.compression.threshold} bytes are sent deflated once the server agrees, and the
+ * server sends its larger frames deflated too: as pieces of one stream per connection
+ * ({@link #DEFLATED_STREAM}), or compressed on their own for wide broadcasts ({@link #DEFLATED}).
+ */
+public final class FrameProtocol {
+    public static final boolean ENABLED = "binary".equalsIgnoreCase(System.getProperty("chat.protocol", "text"));
+    public static final boolean COMPRESSION = ENABLED && "deflate".equalsIgnoreCase(System.getProperty("chat.compression", "none"));
+    public static final int COMPRESSION_THRESHOLD = Integer.getInteger("chat.compression.threshold", 256);
+
+    public static final String BINARY_HELLO = "#PROTOCOL binary";
+    public static final String BINARY_ACCEPT = "#PROTOCOL binary ok";
+    public static final String BINARY_HELLO_DEFLATE = "#PROTOCOL binary deflate";
+    public static final String BINARY_ACCEPT_DEFLATE = "#PROTOCOL binary ok deflate";
+    // The server pings a quiet connection and times it out if no answer comes; never shown to the user
+    public static final String PING = "#PING";
+    public static final String PONG = "#PONG";
+    public static final int MAX_PAYLOAD = 1 << 20;
+
+    // Client to server
+    public static final byte HELLO = 0x01;
+    public static final byte CHAT = 0x02;
+    public static final byte COMMAND = 0x03;
+
+    // Server to client
+    public static final byte MESSAGE = 0x10;
+    public static final byte CHAT_FROM = 0x11;
+    public static final byte DIGEST = 0x12;
+
+    // Either direction, once compression is negotiated: a whole frame, deflated
+    public static final byte DEFLATED = 0x13;
+    // Server to client, once compression is negotiated: a whole frame, as the next piece of the
+    // connection's deflate stream
+    public static final byte DEFLATED_STREAM = 0x14;
+
+    // DEFLATED frames from the server are compressed on their own, so one inflater per reader thread will do
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private FrameProtocol() {
+    }
+
+    // Asks the server for binary frames; reads the answer a byte at a time so no frame is over-read.
+    // Returns the connection's compressor if compression was asked for and granted, otherwise null.
+    public static Compressor negotiate(InputStream in, OutputStream out) throws IOException {
+        out.write(((COMPRESSION ? BINARY_HELLO_DEFLATE : BINARY_HELLO) + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        String reply = line.toString(StandardCharsets.UTF_8).trim();
+        if (BINARY_ACCEPT_DEFLATE.equals(reply)) {
+            return new Compressor();
+        }
+        if (!BINARY_ACCEPT.equals(reply)) {
+            throw new IOException("Server does not support binary frames: " + reply);
+        }
+        return null;
+    }
+
+    public static void writeFrame(OutputStream out, byte opcode, String text) throws IOException {
+        writeFrame(out, opcode, text, null);
+    }
+
+    // Writes one frame, deflated if a compressor is given and the frame is big enough
+    public static void writeFrame(OutputStream out, byte opcode, String text, Compressor compressor) throws IOException {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        byte[] frame = ByteBuffer.allocate(5 + payload.length).put(opcode).putInt(payload.length).put(payload).array();
+        // Frames and the compressor's stream must both stay in order across sending threads
+        synchronized (out) {
+            if (compressor != null && frame.length >= COMPRESSION_THRESHOLD) {
+                byte[] deflated = compressor.deflate(frame);
+                out.write(ByteBuffer.allocate(5).put(DEFLATED).putInt(deflated.length).array());
+                out.write(deflated);
+            } else {
+                out.write(frame);
+            }
+            out.flush();
+        }
+    }
+
+    public static String readMessage(DataInputStream in) throws IOException {
+        return readMessage(in, null);
+    }
+
+    // Reads frames until one carries something to display; returns null at end of stream. The
+    // compressor inflates the server's stream and must be the one negotiated for this connection.
+    public static String readMessage(DataInputStream in, Compressor compressor) throws IOException {
+        while (true) {
+            int opcode = in.read();
+            if (opcode == -1) {
+                return null;
+            }
+            byte[] payload;
+            try {
+                int length = in.readInt();
+                if (length < 0 || length > MAX_PAYLOAD) {
+                    throw new IOException("Invalid frame length: " + length);
+                }
+                payload = new byte[length];
+                in.readFully(payload);
+            } catch (EOFException e) {
+                return null;
+            }
+
+            String message = decode(opcode, ByteBuffer.wrap(payload), compressor);
+            if (message != null) {
+                return message;
+            }
+            // Unknown frame types are skipped so newer servers stay compatible
+        }
+    }
+
+    private static String decode(int opcode, ByteBuffer payload, Compressor compressor) throws IOException {
+        if (opcode == DEFLATED || opcode == DEFLATED_STREAM) {
+            if (opcode == DEFLATED_STREAM && compressor == null) {
+                throw new IOException("Compressed stream frame without negotiated compression");
+            }
+            ByteBuffer frame = opcode == DEFLATED ? inflate(payload) : compressor.inflate(payload);
+            if (frame.remaining() < 5) {
+                throw new IOException("Invalid compressed frame");
+            }
+            int innerOpcode = frame.get();
+            int length = frame.getInt();
+            if (innerOpcode == DEFLATED || innerOpcode == DEFLATED_STREAM || length != frame.remaining()) {
+                throw new IOException("Invalid compressed frame");
+            }
+            return decode(innerOpcode, frame, null);
+        } else if (opcode == MESSAGE) {
+            return utf8(payload, payload.remaining());
+        } else if (opcode == CHAT_FROM) {
+            int senderLength = payload.remaining() >= 2 ? payload.getShort() & 0xffff : -1;
+            if (senderLength < 0 || senderLength > payload.remaining()) {
+                throw new IOException("Invalid sender length in chat frame");
+            }
+            String sender = utf8(payload, senderLength);
+            return sender + ": " + utf8(payload, payload.remaining());
+        } else if (opcode == DIGEST) {
+            // Frames the server held while we were busy, shown one per line
+            StringBuilder lines = new StringBuilder();
+            while (payload.hasRemaining()) {
+                if (payload.remaining() < 5) {
+                    throw new IOException("Truncated frame in digest");
+                }
+                int innerOpcode = payload.get();
+                int length = payload.getInt();
+                if (length < 0 || length > payload.remaining()) {
+                    throw new IOException("Invalid frame length in digest: " + length);
+                }
+                ByteBuffer inner = payload.slice();
+                inner.limit(length);
+                payload.position(payload.position() + length);
+                String line = decode(innerOpcode, inner, null);
+                if (line != null) {
+                    lines.append(lines.length() > 0 ? "\n" : "").append(line);
+                }
+            }
+            return lines.toString();
+        }
+        return null;
+    }
+
+    private static ByteBuffer inflate(ByteBuffer payload) throws IOException {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+        byte[] output = new byte[Math.max(64, payload.remaining() * 4)];
+        int length = 0;
+        try {
+            while (!inflater.finished()) {
+                if (length == output.length) {
+                    if (length >= 5 + MAX_PAYLOAD) {
+                        throw new IOException("Compressed frame inflates past " + (5 + MAX_PAYLOAD) + " bytes");
+                    }
+                    output = Arrays.copyOf(output, Math.min(5 + MAX_PAYLOAD, length * 2));
+                }
+                int n = inflater.inflate(output, length, output.length - length);
+                if (n == 0 && inflater.needsInput()) {
+                    throw new IOException("Truncated compressed frame");
+                }
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed frame: " + e.getMessage());
+        }
+        return ByteBuffer.wrap(output, 0, length);
+    }
+
+    private static String utf8(ByteBuffer buffer, int length) {
+        String text = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return text;
+    }
+
+    /**
+     * One connection's deflate streams: to the server, and the server's {@link #DEFLATED_STREAM}
+     * frames back. The window carries over from frame to frame, and each frame ends with a sync
+     * flush so the other side can inflate it as soon as it arrives.
+     */
+    public static final class Compressor {
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private final Inflater inflater = new Inflater(true);
+        private byte[] buffer = new byte[1024];
+        private byte[] inflated = new byte[1024];
+
+        byte[] deflate(byte[] frame) {
+            deflater.setInput(frame);
+            int length = 0;
+            while (true) {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, length * 2);
+                }
+                length += deflater.deflate(buffer, length, buffer.length - length, Deflater.SYNC_FLUSH);
+                // A flush that leaves output space unused has written everything
+                if (length < buffer.length) {
+                    return Arrays.copyOf(buffer, length);
+                }
+            }
+        }
+
+        // Inflates the next piece of the server's stream; only the reader thread calls this
+        ByteBuffer inflate(ByteBuffer payload) throws IOException {
+            inflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+            int length = 0;
+            try {
+                while (true) {
+                    if (length == inflated.length) {
+                        if (length >= 5 + MAX_PAYLOAD) {
+                            throw new IOException("Compressed frame inflates past " + (5 + MAX_PAYLOAD) + " bytes");
+                        }
+                        inflated = Arrays.copyOf(inflated, Math.min(5 + MAX_PAYLOAD, length * 2));
+                    }
+                    int n = inflater.inflate(inflated, length, inflated.length - length);
+                    length += n;
+                    if (n == 0 && length < inflated.length) {
+                        // The server flushed at the end of the frame, so all of it is out
+                        break;
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Invalid compressed frame: " + e.getMessage());
+            }
+            return ByteBuffer.wrap(Arrays.copyOf(inflated, length));
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package com.example.finalclient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless load test speaking the same protocol as ChatClient and Client, text or binary
+ * ({@code -Dchat.protocol=binary}). Each simulated client stamps its messages with the send time,
+ * so every delivery seen by any client gives an end-to-end latency sample.
+ * <p>
+ * Configured with system properties, e.g.
+ * {@code java -Dloadgen.connections=2000 -Dloadgen.rate=5000 -cp target/classes com.example.finalclient.LoadGenerator}
+ */
+public class LoadGenerator {
+    private static final String HOST = System.getProperty("loadgen.host", "localhost");
+    private static final int PORT = Integer.getInteger("loadgen.port", 5570);
+    // "chat" for ChatServer/NioChatServer (username first line), "server" for Server
+    private static final String TARGET = System.getProperty("loadgen.target", "chat");
+    private static final int CONNECTIONS = Integer.getInteger("loadgen.connections", 100);
+    // Messages per second across all connections
+    private static final int RATE = Integer.getInteger("loadgen.rate", 100);
+    private static final int MESSAGE_SIZE = Integer.getInteger("loadgen.messageSize", 64);
+    private static final int DURATION_SECONDS = Integer.getInteger("loadgen.durationSeconds", 30);
+    private static final int REPORT_SECONDS = Integer.getInteger("loadgen.reportSeconds", 5);
+    // Share of connections that go busy for a while every toggle interval (ChatServer only)
+    private static final double BUSY_FRACTION = Double.parseDouble(System.getProperty("loadgen.busyFraction", "0"));
+    private static final long BUSY_TOGGLE_MILLIS = Long.getLong("loadgen.busyToggleMillis", 5000);
+    // Connections closed and replaced per second
+    private static final int CHURN_PER_SECOND = Integer.getInteger("loadgen.churnPerSecond", 0);
+    // Reader threads are plentiful, so they get small stacks
+    private static final long READER_STACK_SIZE = 256 * 1024;
+
+    private static final String MARKER = "#lg ";
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram connectTime = new LatencyHistogram();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong churned = new AtomicLong();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final List<SimulatedClient> clients = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), runnable -> {
+                Thread thread = new Thread(runnable, "loadgen-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private final String padding;
+    private volatile boolean running = true;
+
+    public LoadGenerator() {
+        padding = "x".repeat(Math.max(0, MESSAGE_SIZE - 40));
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        new LoadGenerator().run();
+    }
+
+    public void run() throws InterruptedException {
+        System.out.println("Opening " + CONNECTIONS + " connections to " + HOST + ":" + PORT + " (" + TARGET
+                + (FrameProtocol.ENABLED ? ", binary" : ", text") + ")");
+        for (int i = 0; i < CONNECTIONS; i++) {
+            openClient();
+        }
+        System.out.println("Connected " + clients.size() + " clients, connect p50 " + millis(connectTime.percentile(0.5))
+                + " ms, p99 " + millis(connectTime.percentile(0.99)) + " ms");
+
+        long start = System.nanoTime();
+        if (RATE > 0) {
+            // One tick per message keeps the offered rate steady regardless of client count
+            long periodNanos = Math.max(1, TimeUnit.SECONDS.toNanos(1) / RATE);
+            scheduler.scheduleAtFixedRate(this::sendOne, 0, periodNanos, TimeUnit.NANOSECONDS);
+        }
+        if (BUSY_FRACTION > 0 && "chat".equals(TARGET)) {
+            scheduler.scheduleAtFixedRate(this::toggleBusy, BUSY_TOGGLE_MILLIS, BUSY_TOGGLE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        if (CHURN_PER_SECOND > 0) {
+            long periodMicros = TimeUnit.SECONDS.toMicros(1) / CHURN_PER_SECOND;
+            scheduler.scheduleAtFixedRate(this::churnOne, periodMicros, periodMicros, TimeUnit.MICROSECONDS);
+        }
+
+        long lastReceived = 0;
+        long lastReport = start;
+        long end = start + TimeUnit.SECONDS.toNanos(DURATION_SECONDS);
+        while (System.nanoTime() < end) {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(Math.min(REPORT_SECONDS, DURATION_SECONDS)));
+            long now = System.nanoTime();
+            long total = received.get();
+            report("interval", total - lastReceived, now - lastReport);
+            lastReceived = total;
+            lastReport = now;
+        }
+
+        running = false;
+        scheduler.shutdownNow();
+        for (SimulatedClient client : clients) {
+            client.close();
+        }
+        report("total", received.get(), System.nanoTime() - start);
+        System.out.println("Connect time p50 " + millis(connectTime.percentile(0.5)) + " ms, p99 "
+                + millis(connectTime.percentile(0.99)) + " ms, p999 " + millis(connectTime.percentile(0.999))
+                + " ms over " + connectTime.count() + " connections");
+    }
+
+    private void report(String label, long deliveries, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("[%s] sent %d, delivered %d (%.0f msg/s), latency p50 %s ms, p99 %s ms, p999 %s ms, "
+                        + "errors %d, churned %d%n",
+                label, sent.get(), received.get(), deliveries / seconds, millis(latency.percentile(0.5)),
+                millis(latency.percentile(0.99)), millis(latency.percentile(0.999)), errors.get(), churned.get());
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+
+    private void openClient() {
+        SimulatedClient client = new SimulatedClient("load" + nextId.incrementAndGet());
+        try {
+            client.connect();
+            clients.add(client);
+        } catch (IOException e) {
+            errors.incrementAndGet();
+            client.close();
+        }
+    }
+
+    private void sendOne() {
+        int size = clients.size();
+        if (size == 0) {
+            return;
+        }
+        try {
+            clients.get(ThreadLocalRandom.current().nextInt(size)).sendStamped();
+        } catch (IndexOutOfBoundsException e) {
+            // A client was churned between size() and get()
+        }
+    }
+
+    private void toggleBusy() {
+        for (SimulatedClient client : clients) {
+            client.setBusy(ThreadLocalRandom.current().nextDouble() < BUSY_FRACTION);
+        }
+    }
+
+    private void churnOne() {
+        int size = clients.size();
+        if (size == 0) {
+            return;
+        }
+        try {
+            SimulatedClient client = clients.remove(ThreadLocalRandom.current().nextInt(size));
+            client.close();
+            churned.incrementAndGet();
+        } catch (IndexOutOfBoundsException e) {
+            return;
+        }
+        openClient();
+    }
+
+    // Receivers parse "<anything>#lg <send nanos> <padding>" and record the delivery latency
+    private void onLine(String line) {
+        int marker = line.indexOf(MARKER);
+        if (marker < 0) {
+            return;
+        }
+        int start = marker + MARKER.length();
+        int end = line.indexOf(' ', start);
+        try {
+            long sentAt = Long.parseLong(end < 0 ? line.substring(start) : line.substring(start, end));
+            latency.record(System.nanoTime() - sentAt);
+            received.incrementAndGet();
+        } catch (NumberFormatException e) {
+            // Not one of ours
+        }
+    }
+
+    private final class SimulatedClient {
+        private final String username;
+        private Socket socket;
+        private OutputStream out;
+        private FrameProtocol.Compressor compressor;
+        private boolean busy;
+        private volatile boolean closed;
+
+        SimulatedClient(String username) {
+            this.username = username;
+        }
+
+        void connect() throws IOException {
+            long start = System.nanoTime();
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(HOST, PORT));
+            InputStream in = socket.getInputStream();
+            out = new BufferedOutputStream(socket.getOutputStream());
+
+            DataInputStream frameReader = null;
+            BufferedReader reader = null;
+            if (FrameProtocol.ENABLED) {
+                compressor = FrameProtocol.negotiate(in, socket.getOutputStream());
+                frameReader = new DataInputStream(new BufferedInputStream(in));
+            } else {
+                reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            }
+
+            if ("chat".equals(TARGET)) {
+                // Same opening as ChatClient.connectToServer; the welcome line ends the setup
+                send(FrameProtocol.HELLO, username);
+                send(FrameProtocol.COMMAND, "available");
+                String welcome = frameReader != null ? FrameProtocol.readMessage(frameReader, compressor) : reader.readLine();
+                if (welcome == null) {
+                    throw new IOException("Connection closed before the welcome message");
+                }
+            }
+            connectTime.record(System.nanoTime() - start);
+
+            DataInputStream frames = frameReader;
+            BufferedReader lines = reader;
+            Thread thread = new Thread(null, () -> receive(frames, lines), "loadgen-" + username, READER_STACK_SIZE);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void sendStamped() {
+            send(FrameProtocol.CHAT, MARKER + System.nanoTime() + " " + padding);
+            sent.incrementAndGet();
+        }
+
+        synchronized void setBusy(boolean busy) {
+            if (this.busy != busy) {
+                this.busy = busy;
+                send(FrameProtocol.COMMAND, busy ? "busy" : "available");
+            }
+        }
+
+        private synchronized void send(byte opcode, String text) {
+            if (closed) {
+                return;
+            }
+            try {
+                if (FrameProtocol.ENABLED) {
+                    FrameProtocol.writeFrame(out, opcode, text, compressor);
+                } else {
+                    out.write((text + "\n").getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+            } catch (IOException e) {
+                errors.incrementAndGet();
+                close();
+            }
+        }
+
+        private void receive(DataInputStream frames, BufferedReader lines) {
+            try {
+                String message;
+                while ((message = frames != null ? FrameProtocol.readMessage(frames, compressor) : lines.readLine()) != null) {
+                    if (FrameProtocol.PING.equals(message)) {
+                        send(FrameProtocol.COMMAND, FrameProtocol.PONG);
+                    } else if (message.indexOf('\n') >= 0) {
+                        // A digest frame carries several lines
+                        for (String line : message.split("\n")) {
+                            onLine(line);
+                        }
+                    } else {
+                        onLine(message);
+                    }
+                }
+            } catch (IOException e) {
+                // Handled below
+            } finally {
+                if (!closed && running) {
+                    // Dropped by the server; counts as an error and leaves the pool
+                    errors.incrementAndGet();
+                    clients.remove(this);
+                }
+                close();
+            }
+        }
+
+        void close() {
+            closed = true;
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.finalclient;
+
+import javafx.animation.AnimationTimer;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Chat history as a virtualized list: only the visible rows have cells, so adding a message costs
+ * the same however long the history is. Messages may be posted from any thread; they are queued
+ * and added in one batch per frame, keeping at most the newest {@code chat.view.maxMessages}.
+ */
+public class MessageListView extends ListView<String> {
+    public static final int MAX_MESSAGES = Integer.getInteger("chat.view.maxMessages", 2000);
+
+    private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+    private final int maxMessages;
+    private final AnimationTimer drainer;
+
+    // Must be created on the FX thread
+    public MessageListView() {
+        this(MAX_MESSAGES);
+    }
+
+    public MessageListView(int maxMessages) {
+        this.maxMessages = Math.max(1, maxMessages);
+        setCellFactory(list -> new ListCell<>() {
+            {
+                // Long messages wrap inside the list instead of widening it
+                setWrapText(true);
+                prefWidthProperty().bind(list.widthProperty().subtract(20));
+            }
+
+            @Override
+            protected void updateItem(String message, boolean empty) {
+                super.updateItem(message, empty);
+                setText(empty ? null : message);
+            }
+        });
+        drainer = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                drain();
+            }
+        };
+        drainer.start();
+    }
+
+    // Safe from any thread; a digest of several lines becomes one row per line
+    public void post(String message) {
+        if (message.indexOf('\n') >= 0) {
+            for (String line : message.split("\n")) {
+                pending.add(line);
+            }
+        } else {
+            pending.add(message);
+        }
+    }
+
+    private void drain() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<String> batch = new ArrayList<>();
+        String message;
+        while ((message = pending.poll()) != null) {
+            batch.add(message);
+        }
+        // Messages that would be evicted in the same frame are never added
+        if (batch.size() > maxMessages) {
+            batch = batch.subList(batch.size() - maxMessages, batch.size());
+        }
+        int excess = getItems().size() + batch.size() - maxMessages;
+        if (excess > 0) {
+            getItems().remove(0, excess);
+        }
+        getItems().addAll(batch);
+        scrollTo(getItems().size() - 1);
+    }
+}
@@ -1,33 +1,71 @@
 package com.example.finalserver;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 public class ChatServer {
-    private static final int SERVER_PORT = 5570;
+    private static final int SERVER_PORT = Integer.getInteger("chat.port", 5570);
 
     private ServerSocket serverSocket;
-    private Map<String, BufferedWriter> connectedClients;
-    private Set<String> busyClients;
+    private ClientRegistry<ClientConnection> connectedClients;
+    private RoomIndex<ClientConnection> rooms;
+    // History of room broadcasts; null if journaling is disabled
+    private MessageJournal journal;
+    private HistoryReplay replay;
+    private ExecutorService clientExecutor;
+    private ServerMetrics metrics;
+    // Link to the other nodes; null unless clustering is configured
+    private ClusterNode cluster;
+    // Pings quiet clients and expires silent ones; null if idle timeouts are disabled
+    private HeartbeatMonitor heartbeats;
 
     public ChatServer() {
-        connectedClients = new HashMap<>();
-        busyClients = new HashSet<>();
+        connectedClients = new ClientRegistry<>();
+        rooms = new RoomIndex<>();
+        journal = MessageJournal.openDefault(SERVER_PORT);
+        replay = new HistoryReplay(journal);
+        clientExecutor = ClientExecutors.newClientExecutor("chat-client");
+        metrics = ServerMetrics.register("ChatServer");
+        metrics.setQueueDepthSource(connectedClients.clients(), ClientConnection::queueDepth);
+        heartbeats = HeartbeatMonitor.openDefault();
+        cluster = ClusterNode.startDefault(new ClusterNode.Listener() {
+            @Override
+            public void onBroadcast(Set<String> roomNames, MessageFrame frame) {
+                deliverLocally(roomNames, frame);
+            }
+
+            @Override
+            public void onPresence(String username, boolean online, String node) {
+                System.out.println("Remote client " + (online ? "connected: " : "disconnected: ") + username + " on " + node);
+            }
+
+            @Override
+            public Collection<String> localUsers() {
+                return connectedClients.usernames();
+            }
+        });
     }
 
     public void start() {
         try {
-            serverSocket = new ServerSocket(SERVER_PORT);
+            // Channel-backed sockets let client writers use gathering writes
+            serverSocket = ServerSocketChannel.open().socket();
+            serverSocket.bind(new InetSocketAddress(SERVER_PORT));
             System.out.println("Server started on port " + SERVER_PORT);
 
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                handleClient(clientSocket);
+                metrics.accepted();
+                // The handshake waits on the client, so it runs off the accept thread
+                clientExecutor.execute(() -> handleClient(clientSocket));
             }
         } catch (IOException e) {
             System.err.println("Error in server: " + e.getMessage());
@@ -39,74 +77,251 @@ public class ChatServer {
                     // Ignore
                 }
             }
+            if (journal != null) {
+                journal.close();
+            }
+            if (cluster != null) {
+                cluster.close();
+            }
+            if (heartbeats != null) {
+                heartbeats.close();
+            }
         }
     }
 
     private void handleClient(Socket clientSocket) {
         try {
-            InputStream inputStream = clientSocket.getInputStream();
-            OutputStream outputStream = clientSocket.getOutputStream();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(outputStream));
+            ClientReader reader = new ClientReader(clientSocket.getInputStream());
 
-            // Read the username from the client
-            String username = reader.readLine();
+            // Read the username from the client, or its request to switch to binary frames;
+            // a client that never sends one is dropped after the idle timeout
+            clientSocket.setSoTimeout((int) Math.max(0, HeartbeatMonitor.TIMEOUT_MILLIS));
+            String firstLine = reader.readLine();
+            boolean binary = FrameProtocol.isBinaryHello(firstLine);
+            boolean compressed = binary && FrameProtocol.acceptsDeflate(firstLine);
+            if (binary) {
+                FrameProtocol.acceptBinary(clientSocket, compressed);
+                reader.switchToBinary(compressed);
+                InboundMessage hello = reader.read();
+                firstLine = hello != null ? hello.text() : null;
+            }
+            if (firstLine == null) {
+                clientSocket.close();
+                return;
+            }
+            if (!ClientRegistry.isValidUsername(firstLine)) {
+                FrameProtocol.refuse(clientSocket, ClientRegistry.INVALID_USERNAME, binary);
+                clientSocket.close();
+                return;
+            }
+            String username = firstLine;
+            clientSocket.setSoTimeout(0);
             System.out.println("Client connected: " + username);
 
+            // Outbound lines go through a bounded queue drained by the connection's own writer task
+            ClientConnection connection = new ClientConnection(username, clientSocket, clientExecutor, binary, compressed,
+                    metrics);
+            metrics.connectionOpened();
+
             // Send a welcome message to the client
-            writer.write("Welcome to the chat room, " + username + "!\n");
-            writer.flush();
+            connection.send("Welcome to the chat room, " + username + "!");
+
+            // Add the client to the registry, replacing a stale connection with the same name
+            ClientConnection previous = connectedClients.add(username, connection);
+            if (previous != null) {
+                previous.close(ServerMetrics.DisconnectReason.REPLACED);
+            }
+            // A failed write or a slow consumer is unregistered at once, not when its reader ends
+            connection.setEvictionListener(() -> connectedClients.remove(username, connection));
 
-            // Add the client to the connected clients map
-            connectedClients.put(username, writer);
+            // Everyone starts in the default room
+            rooms.join(connection, RoomIndex.DEFAULT_ROOM);
+            if (cluster != null) {
+                cluster.publishPresence(username, true);
+            }
 
-            // Start a new thread for handling client messages
-            Thread clientThread = new Thread(() -> handleClientMessages(username, reader));
-            clientThread.start();
+            // Keep handling the client's messages on the same executor thread
+            HeartbeatMonitor.Watch watch = null;
+            if (heartbeats != null) {
+                watch = heartbeats.watch(() -> connection.send(FrameProtocol.PING), () -> {
+                    System.out.println("Client timed out: " + username);
+                    // Closing the socket also wakes the reader, which cleans up as for any disconnect
+                    connection.evict(ServerMetrics.DisconnectReason.IDLE_TIMEOUT);
+                });
+            }
+            handleClientMessages(username, connection, reader, watch);
         } catch (IOException e) {
             System.err.println("Error in client connection: " + e.getMessage());
+            try {
+                clientSocket.close();
+            } catch (IOException ex) {
+                // Ignore
+            }
         }
     }
 
-    private void handleClientMessages(String username, BufferedReader reader) {
+    private void handleClientMessages(String username, ClientConnection connection, ClientReader reader,
+                                      HeartbeatMonitor.Watch watch) {
+        ServerMetrics.DisconnectReason reason = ServerMetrics.DisconnectReason.CLIENT_CLOSED;
         try {
-            String message;
-            while ((message = reader.readLine()) != null) {
-                System.out.println("Message from " + username + ": " + message);
+            InboundMessage message;
+            while ((message = reader.read()) != null) {
+                metrics.messageIn();
+                if (watch != null) {
+                    watch.touch();
+                }
+                if (message.isChat()) {
+                    // Binary chat frames are relayed as raw bytes, never decoded
+                    System.out.println("Message from " + username + ": " + message.length() + " bytes");
+                    String room = rooms.activeRoom(connection);
+                    if (room != null) {
+                        broadcastMessage(room, MessageFrame.chat(RoomIndex.senderLabel(username, room), message.payload()));
+                    }
+                    continue;
+                }
+
+                String text = message.text();
+                if (FrameProtocol.PONG.equals(text)) {
+                    continue;
+                }
+                System.out.println("Message from " + username + ": " + text);
 
                 // Check if the client wants to change their availability
-                if (message.equalsIgnoreCase("busy")) {
-                    busyClients.add(username);
-                } else if (message.equalsIgnoreCase("available")) {
-                    busyClients.remove(username);
+                if (text.equalsIgnoreCase("busy")) {
+                    connectedClients.setBusy(username, true);
+                    connection.setBusy(true);
+                } else if (text.equalsIgnoreCase("available")) {
+                    connectedClients.setBusy(username, false);
+                    // Everything held while busy arrives as one digest
+                    connection.setBusy(false);
+                } else if (text.startsWith("JOIN ")) {
+                    joinRoom(username, connection, text.substring(5).trim());
+                } else if (text.startsWith("LEAVE ")) {
+                    leaveRoom(username, connection, text.substring(6).trim());
+                } else if (text.startsWith("REPLAY ")) {
+                    // One page of missed history for the rooms the client is in
+                    String arguments = text.substring(7).trim();
+                    if (HistoryReplay.TRACK.equals(arguments)) {
+                        connection.trackPositions();
+                    }
+                    replay.handle(arguments, rooms.roomsOf(connection), connection::send);
                 } else {
-                    // Broadcast the message to all connected clients
-                    broadcastMessage(username + ": " + message);
+                    // Deliver the message to the members of the sender's room
+                    String room = rooms.activeRoom(connection);
+                    if (room != null) {
+                        broadcastMessage(room, MessageFrame.chat(RoomIndex.senderLabel(username, room), text));
+                    } else {
+                        connection.send("You are not in any room. Use JOIN <room> first.");
+                    }
                 }
             }
         } catch (IOException e) {
             System.err.println("Error in client connection: " + e.getMessage());
+            reason = ServerMetrics.DisconnectReason.READ_ERROR;
         } finally {
-            // Remove the client from the connected clients map and close the connection
-            connectedClients.remove(username);
-            busyClients.remove(username);
+            if (watch != null) {
+                watch.cancel();
+            }
+            // Remove the client from the registry and close the connection
+            connectedClients.remove(username, connection);
+            connection.close(reason);
+            // A replace, kick or failed write closed the socket first and takes precedence
+            metrics.disconnected(connection.closeReason());
             System.out.println("Client disconnected: " + username);
-            broadcastMessage(username + " has left the chat room.");
+            if (cluster != null && connectedClients.get(username) == null) {
+                cluster.publishPresence(username, false);
+            }
+            broadcastMessage(rooms.leaveAll(connection), MessageFrame.of(username + " has left the chat room."));
         }
     }
 
-    private void broadcastMessage(String message) {
-        for (BufferedWriter writer : connectedClients.values()) {
-            try {
-                writer.write(message + "\n");
-                writer.flush();
-            } catch (IOException e) {
-                // Ignore
-            }
+    private void joinRoom(String username, ClientConnection connection, String room) {
+        if (!RoomIndex.isValidName(room)) {
+            connection.send("Invalid room name: " + room);
+            return;
+        }
+        rooms.join(connection, room);
+        System.out.println(username + " joined room " + room);
+        broadcastMessage(room, MessageFrame.of(username + " has joined room " + room + "."));
+    }
+
+    private void leaveRoom(String username, ClientConnection connection, String room) {
+        if (rooms.leave(connection, room)) {
+            System.out.println(username + " left room " + room);
+            connection.send("You left room " + room + ".");
+            broadcastMessage(room, MessageFrame.of(username + " has left room " + room + "."));
+        }
+    }
+
+    // Delivers to the room here and on every other node of the cluster
+    private void broadcastMessage(String room, MessageFrame frame) {
+        deliverLocally(room, frame);
+        if (cluster != null) {
+            cluster.publish(Collections.singleton(room), frame);
+        }
+    }
+
+    private void broadcastMessage(Set<String> roomNames, MessageFrame frame) {
+        deliverLocally(roomNames, frame);
+        if (cluster != null && !roomNames.isEmpty()) {
+            cluster.publish(roomNames, frame);
+        }
+    }
+
+    private void deliverLocally(String room, MessageFrame frame) {
+        if (journal != null) {
+            // A copy into the mapped segment; the disk write happens in the background
+            journal.append(room, frame);
+        }
+        // Encode once and share the frame; each connection's writer task does the socket I/O
+        Collection<ClientConnection> members = rooms.members(room);
+        frame.setFanOut(members.size());
+        long start = System.nanoTime();
+        int recipients = 0;
+        for (ClientConnection connection : members) {
+            connection.deliver(frame);
+            recipients++;
         }
+        metrics.broadcast(recipients, System.nanoTime() - start);
+    }
+
+    // Delivers once to everyone sharing at least one of the rooms
+    private void deliverLocally(Set<String> roomNames, MessageFrame frame) {
+        if (roomNames.size() == 1) {
+            deliverLocally(roomNames.iterator().next(), frame);
+            return;
+        }
+        if (journal != null) {
+            // One record for all the rooms, as the frame is delivered once
+            journal.append(roomNames, frame);
+        }
+        Set<ClientConnection> recipients = new HashSet<>();
+        for (String room : roomNames) {
+            recipients.addAll(rooms.members(room));
+        }
+        frame.setFanOut(recipients.size());
+        long start = System.nanoTime();
+        for (ClientConnection connection : recipients) {
+            connection.deliver(frame);
+        }
+        metrics.broadcast(recipients.size(), System.nanoTime() - start);
+    }
+
+    public Set<String> getRooms(String username) {
+        ClientConnection connection = connectedClients.get(username);
+        return connection != null ? rooms.roomsOf(connection) : Collections.emptySet();
+    }
+
+    public int getQueueDepth(String username) {
+        ClientConnection connection = connectedClients.get(username);
+        return connection != null ? connection.queueDepth() : 0;
     }
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equalsIgnoreCase("nio")) {
+            NioChatServer.main(args);
+            return;
+        }
         ChatServer server = new ChatServer();
         server.start();
     }
@@ -4,42 +4,90 @@ import javafx.application.Platform;
 import javafx.scene.control.*;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 
 public class ChatServerController {
-    private static final int SERVER_PORT = 5570;
+    private static final int SERVER_PORT = Integer.getInteger("chat.port", 5570);
+    // How long a kicked client's writer gets to deliver the notice before the socket is closed anyway
+    private static final long KICK_LINGER_MILLIS = 1000;
 
     private ServerSocket serverSocket;
-    private Map<String, BufferedWriter> connectedClients;
-    private Set<String> busyClients;
+    private ClientRegistry<ClientConnection> connectedClients;
+    private RoomIndex<ClientConnection> rooms;
+    // History of room broadcasts; null if journaling is disabled
+    private MessageJournal journal;
+    private HistoryReplay replay;
+    // Names added by hand from the GUI; they have no socket behind them
+    private Set<String> reservedClients;
+    private ExecutorService clientExecutor;
+    private ServerMetrics metrics;
+    // Link to the other nodes; null unless clustering is configured
+    private ClusterNode cluster;
+    // Pings quiet clients and expires silent ones; null if idle timeouts are disabled
+    private HeartbeatMonitor heartbeats;
 
     private TextArea logArea;
+    private LogPipeline logPipeline;
     private ListView<String> clientListView;
     private TextField usernameTextField;
 
     public ChatServerController(TextArea logArea, ListView<String> clientListView, TextField usernameTextField) {
         this.logArea = logArea;
+        // Network threads only enqueue; the FX thread appends once per pulse
+        logPipeline = new LogPipeline(logArea);
+        logPipeline.start();
         this.clientListView = clientListView;
         this.usernameTextField = usernameTextField;
-        connectedClients = new HashMap<>();
-        busyClients = new HashSet<>();
+        connectedClients = new ClientRegistry<>();
+        rooms = new RoomIndex<>();
+        journal = MessageJournal.openDefault(SERVER_PORT);
+        replay = new HistoryReplay(journal);
+        reservedClients = ConcurrentHashMap.newKeySet();
+        clientExecutor = ClientExecutors.newClientExecutor("chat-client");
+        metrics = ServerMetrics.register("ChatServerController");
+        metrics.setQueueDepthSource(connectedClients.clients(), ClientConnection::queueDepth);
+        heartbeats = HeartbeatMonitor.openDefault();
+        cluster = ClusterNode.startDefault(new ClusterNode.Listener() {
+            @Override
+            public void onBroadcast(Set<String> roomNames, MessageFrame frame) {
+                deliverLocally(roomNames, frame);
+            }
+
+            @Override
+            public void onPresence(String username, boolean online, String node) {
+                log("Remote client " + (online ? "connected: " : "disconnected: ") + username + " on " + node);
+            }
+
+            @Override
+            public Collection<String> localUsers() {
+                return connectedClients.usernames();
+            }
+        });
     }
 
     public void startServer() {
         if (serverSocket == null || serverSocket.isClosed()) {
             Thread serverThread = new Thread(() -> {
                 try {
-                    serverSocket = new ServerSocket(SERVER_PORT);
+                    // Channel-backed sockets let client writers use gathering writes
+                    serverSocket = ServerSocketChannel.open().socket();
+                    serverSocket.bind(new InetSocketAddress(SERVER_PORT));
                     log("Server started on port " + SERVER_PORT);
 
                     while (true) {
                         Socket clientSocket = serverSocket.accept();
-                        handleClient(clientSocket);
+                        metrics.accepted();
+                        // The handshake waits on the client, so it runs off the accept thread
+                        clientExecutor.execute(() -> handleClient(clientSocket));
                     }
                 } catch (IOException e) {
                     log("Error in server: " + e.getMessage());
@@ -68,17 +116,20 @@ public class ChatServerController {
     public void kickClient() {
         String selectedClient = clientListView.getSelectionModel().getSelectedItem();
         if (selectedClient != null) {
-            BufferedWriter writer = connectedClients.get(selectedClient);
-            try {
-                writer.write("You have been kicked from the chat room.\n");
-                writer.flush();
-                writer.close();
-            } catch (IOException e) {
-                log("Error kicking client: " + e.getMessage());
+            ClientConnection connection = connectedClients.remove(selectedClient);
+            if (connection != null) {
+                // The writer delivers the notice and then closes the connection
+                connection.send("You have been kicked from the chat room.");
+                connection.close(ServerMetrics.DisconnectReason.KICKED);
+                // If the writer is stuck on a client that stopped reading, close the socket anyway,
+                // so the reader thread fails and cleans up instead of waiting on it forever
+                if (heartbeats != null) {
+                    heartbeats.schedule(() -> connection.abort(ServerMetrics.DisconnectReason.KICKED), KICK_LINGER_MILLIS);
+                } else {
+                    connection.abort(ServerMetrics.DisconnectReason.KICKED);
+                }
             }
-
-            connectedClients.remove(selectedClient);
-            busyClients.remove(selectedClient);
+            reservedClients.remove(selectedClient);
             log("Kicked client: " + selectedClient);
 
             // Update the client list view
@@ -88,8 +139,7 @@ public class ChatServerController {
 
     public void addClient() {
         String username = usernameTextField.getText().trim();
-        if (!username.isEmpty() && !connectedClients.containsKey(username)) {
-            connectedClients.put(username, null);
+        if (!username.isEmpty() && !connectedClients.contains(username) && reservedClients.add(username)) {
             log("Added client: " + username);
 
             // Update the client list view
@@ -102,8 +152,13 @@ public class ChatServerController {
     public void removeClient() {
         String selectedClient = clientListView.getSelectionModel().getSelectedItem();
         if (selectedClient != null) {
-            connectedClients.remove(selectedClient);
-            busyClients.remove(selectedClient);
+            ClientConnection connection = connectedClients.remove(selectedClient);
+            if (connection != null) {
+                // Out of its rooms at once; closing the socket ends its reader, which does the rest
+                broadcastMessage(rooms.leaveAll(connection), MessageFrame.of(selectedClient + " has left the chat room."));
+                connection.abort(ServerMetrics.DisconnectReason.KICKED);
+            }
+            reservedClients.remove(selectedClient);
             log("Removed client: " + selectedClient);
 
             // Update the client list view
@@ -113,75 +168,253 @@ public class ChatServerController {
 
     private void handleClient(Socket clientSocket) {
         try {
-            InputStream inputStream = clientSocket.getInputStream();
-            OutputStream outputStream = clientSocket.getOutputStream();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(outputStream));
+            ClientReader reader = new ClientReader(clientSocket.getInputStream());
 
-            // Read the username from the client
-            String username = reader.readLine();
+            // Read the username from the client, or its request to switch to binary frames;
+            // a client that never sends one is dropped after the idle timeout
+            clientSocket.setSoTimeout((int) Math.max(0, HeartbeatMonitor.TIMEOUT_MILLIS));
+            String firstLine = reader.readLine();
+            boolean binary = FrameProtocol.isBinaryHello(firstLine);
+            boolean compressed = binary && FrameProtocol.acceptsDeflate(firstLine);
+            if (binary) {
+                FrameProtocol.acceptBinary(clientSocket, compressed);
+                reader.switchToBinary(compressed);
+                InboundMessage hello = reader.read();
+                firstLine = hello != null ? hello.text() : null;
+            }
+            if (firstLine == null) {
+                clientSocket.close();
+                return;
+            }
+            if (!ClientRegistry.isValidUsername(firstLine)) {
+                FrameProtocol.refuse(clientSocket, ClientRegistry.INVALID_USERNAME, binary);
+                clientSocket.close();
+                return;
+            }
+            String username = firstLine;
+            clientSocket.setSoTimeout(0);
             log("Client connected: " + username);
 
+            // Outbound lines go through a bounded queue drained by the connection's own writer task
+            ClientConnection connection = new ClientConnection(username, clientSocket, clientExecutor, binary, compressed,
+                    metrics);
+            metrics.connectionOpened();
+
             // Send a welcome message to the client
-            writer.write("Welcome to the chat room, " + username + "!\n");
-            writer.flush();
+            connection.send("Welcome to the chat room, " + username + "!");
+
+            // Add the client to the registry, replacing a stale connection with the same name
+            ClientConnection previous = connectedClients.add(username, connection);
+            if (previous != null) {
+                previous.close(ServerMetrics.DisconnectReason.REPLACED);
+            }
+            // A failed write or a slow consumer is unregistered at once, not when its reader ends
+            connection.setEvictionListener(() -> connectedClients.remove(username, connection));
 
-            // Add the client to the connected clients map
-            connectedClients.put(username, writer);
+            // Everyone starts in the default room
+            rooms.join(connection, RoomIndex.DEFAULT_ROOM);
+            if (cluster != null) {
+                cluster.publishPresence(username, true);
+            }
 
             // Update the client list view
             Platform.runLater(() -> clientListView.getItems().add(username));
 
-            // Start a new thread for handling client messages
-            Thread clientThread = new Thread(() -> handleClientMessages(username, reader));
-            clientThread.start();
+            // Keep handling the client's messages on the same executor thread
+            HeartbeatMonitor.Watch watch = null;
+            if (heartbeats != null) {
+                watch = heartbeats.watch(() -> connection.send(FrameProtocol.PING), () -> {
+                    log("Client timed out: " + username);
+                    // Closing the socket also wakes the reader, which cleans up as for any disconnect
+                    connection.evict(ServerMetrics.DisconnectReason.IDLE_TIMEOUT);
+                });
+            }
+            handleClientMessages(username, connection, reader, watch);
         } catch (IOException e) {
             log("Error in client connection: " + e.getMessage());
+            try {
+                clientSocket.close();
+            } catch (IOException ex) {
+                // Ignore
+            }
         }
     }
 
-    private void handleClientMessages(String username, BufferedReader reader) {
+    private void handleClientMessages(String username, ClientConnection connection, ClientReader reader,
+                                      HeartbeatMonitor.Watch watch) {
+        ServerMetrics.DisconnectReason reason = ServerMetrics.DisconnectReason.CLIENT_CLOSED;
         try {
-            String message;
-            while ((message = reader.readLine()) != null) {
-                log("Message from " + username + ": " + message);
+            InboundMessage message;
+            while ((message = reader.read()) != null) {
+                metrics.messageIn();
+                if (watch != null) {
+                    watch.touch();
+                }
+                if (message.isChat()) {
+                    // Binary chat frames are relayed as raw bytes, never decoded
+                    log("Message from " + username + ": " + message.length() + " bytes");
+                    String room = rooms.activeRoom(connection);
+                    if (room != null) {
+                        broadcastMessage(room, MessageFrame.chat(RoomIndex.senderLabel(username, room), message.payload()));
+                    }
+                    continue;
+                }
+
+                String text = message.text();
+                if (FrameProtocol.PONG.equals(text)) {
+                    continue;
+                }
+                log("Message from " + username + ": " + text);
 
                 // Check if the client wants to change their availability
-                if (message.equalsIgnoreCase("busy")) {
-                    busyClients.add(username);
-                } else if (message.equalsIgnoreCase("available")) {
-                    busyClients.remove(username);
+                if (text.equalsIgnoreCase("busy")) {
+                    connectedClients.setBusy(username, true);
+                    connection.setBusy(true);
+                } else if (text.equalsIgnoreCase("available")) {
+                    connectedClients.setBusy(username, false);
+                    // Everything held while busy arrives as one digest
+                    connection.setBusy(false);
+                } else if (text.startsWith("JOIN ")) {
+                    joinRoom(username, connection, text.substring(5).trim());
+                } else if (text.startsWith("LEAVE ")) {
+                    leaveRoom(username, connection, text.substring(6).trim());
+                } else if (text.startsWith("REPLAY ")) {
+                    // One page of missed history for the rooms the client is in
+                    String arguments = text.substring(7).trim();
+                    if (HistoryReplay.TRACK.equals(arguments)) {
+                        connection.trackPositions();
+                    }
+                    replay.handle(arguments, rooms.roomsOf(connection), connection::send);
                 } else {
-                    // Broadcast the message to all connected clients
-                    broadcastMessage(username + ": " + message);
+                    // Deliver the message to the members of the sender's room
+                    String room = rooms.activeRoom(connection);
+                    if (room != null) {
+                        broadcastMessage(room, MessageFrame.chat(RoomIndex.senderLabel(username, room), text));
+                    } else {
+                        connection.send("You are not in any room. Use JOIN <room> first.");
+                    }
                 }
             }
         } catch (IOException e) {
             log("Error in client connection: " + e.getMessage());
+            reason = ServerMetrics.DisconnectReason.READ_ERROR;
         } finally {
-            // Remove the client from the connected clients map and close the connection
-            connectedClients.remove(username);
-            busyClients.remove(username);
+            if (watch != null) {
+                watch.cancel();
+            }
+            // Remove the client from the registry and close the connection
+            connectedClients.remove(username, connection);
+            connection.close(reason);
+            // A replace, kick or failed write closed the socket first and takes precedence
+            metrics.disconnected(connection.closeReason());
             log("Client disconnected: " + username);
-            broadcastMessage(username + " has left the chat room.");
+            if (cluster != null && connectedClients.get(username) == null) {
+                cluster.publishPresence(username, false);
+            }
+            broadcastMessage(rooms.leaveAll(connection), MessageFrame.of(username + " has left the chat room."));
 
             // Update the client list view
             Platform.runLater(() -> clientListView.getItems().remove(username));
         }
     }
 
-    private void broadcastMessage(String message) {
-        for (BufferedWriter writer : connectedClients.values()) {
-            try {
-                writer.write(message + "\n");
-                writer.flush();
-            } catch (IOException e) {
-                // Ignore
-            }
+    private void joinRoom(String username, ClientConnection connection, String room) {
+        if (!RoomIndex.isValidName(room)) {
+            connection.send("Invalid room name: " + room);
+            return;
+        }
+        rooms.join(connection, room);
+        log(username + " joined room " + room);
+        broadcastMessage(room, MessageFrame.of(username + " has joined room " + room + "."));
+        Platform.runLater(() -> clientListView.refresh());
+    }
+
+    private void leaveRoom(String username, ClientConnection connection, String room) {
+        if (rooms.leave(connection, room)) {
+            log(username + " left room " + room);
+            connection.send("You left room " + room + ".");
+            broadcastMessage(room, MessageFrame.of(username + " has left room " + room + "."));
+            Platform.runLater(() -> clientListView.refresh());
+        }
+    }
+
+    // Delivers to the room here and on every other node of the cluster
+    private void broadcastMessage(String room, MessageFrame frame) {
+        deliverLocally(room, frame);
+        if (cluster != null) {
+            cluster.publish(Collections.singleton(room), frame);
+        }
+    }
+
+    private void broadcastMessage(Set<String> roomNames, MessageFrame frame) {
+        deliverLocally(roomNames, frame);
+        if (cluster != null && !roomNames.isEmpty()) {
+            cluster.publish(roomNames, frame);
+        }
+    }
+
+    private void deliverLocally(String room, MessageFrame frame) {
+        if (journal != null) {
+            // A copy into the mapped segment; the disk write happens in the background
+            journal.append(room, frame);
+        }
+        // Encode once and share the frame; each connection's writer task does the socket I/O
+        Collection<ClientConnection> members = rooms.members(room);
+        frame.setFanOut(members.size());
+        long start = System.nanoTime();
+        int recipients = 0;
+        for (ClientConnection connection : members) {
+            connection.deliver(frame);
+            recipients++;
+        }
+        metrics.broadcast(recipients, System.nanoTime() - start);
+    }
+
+    // Delivers once to everyone sharing at least one of the rooms
+    private void deliverLocally(Set<String> roomNames, MessageFrame frame) {
+        if (roomNames.size() == 1) {
+            deliverLocally(roomNames.iterator().next(), frame);
+            return;
+        }
+        if (journal != null) {
+            // One record for all the rooms, as the frame is delivered once
+            journal.append(roomNames, frame);
+        }
+        Set<ClientConnection> recipients = new HashSet<>();
+        for (String room : roomNames) {
+            recipients.addAll(rooms.members(room));
+        }
+        frame.setFanOut(recipients.size());
+        long start = System.nanoTime();
+        for (ClientConnection connection : recipients) {
+            connection.deliver(frame);
+        }
+        metrics.broadcast(recipients.size(), System.nanoTime() - start);
+    }
+
+    public Set<String> getRooms(String username) {
+        ClientConnection connection = connectedClients.get(username);
+        return connection != null ? rooms.roomsOf(connection) : Collections.emptySet();
+    }
+
+    public int getQueueDepth(String username) {
+        ClientConnection connection = connectedClients.get(username);
+        return connection != null ? connection.queueDepth() : 0;
+    }
+
+    // Stops the log drainer and flushes the log file, if any
+    public void closeLog() {
+        logPipeline.stop();
+    }
+
+    // Sends the other nodes an empty presence snapshot so they drop this node's users, then closes the links
+    public void leaveCluster() {
+        if (cluster != null) {
+            cluster.close();
         }
     }
 
     private void log(String message) {
-        Platform.runLater(() -> logArea.appendText(message + "\n"));
+        logPipeline.log(message);
     }
 }
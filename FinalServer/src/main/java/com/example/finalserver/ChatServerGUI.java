@@ -4,6 +4,7 @@ import javafx.application.Application;
 import javafx.geometry.Insets;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
+import javafx.scene.control.ListCell;
 import javafx.scene.control.ListView;
 import javafx.scene.control.TextArea;
 import javafx.scene.control.TextField;
@@ -28,6 +29,18 @@ public class ChatServerGUI extends Application {
 
         clientListView = new ListView<>();
         clientListView.setPrefHeight(200);
+        // Items stay plain usernames (kick/remove rely on that); the cell adds each client's rooms
+        clientListView.setCellFactory(list -> new ListCell<>() {
+            @Override
+            protected void updateItem(String username, boolean empty) {
+                super.updateItem(username, empty);
+                if (empty || username == null) {
+                    setText(null);
+                } else {
+                    setText(username + " " + serverController.getRooms(username));
+                }
+            }
+        });
 
         usernameTextField = new TextField();
         usernameTextField.setPromptText("Username");
@@ -63,6 +76,14 @@ public class ChatServerGUI extends Application {
         serverController = new ChatServerController(logArea, clientListView, usernameTextField);
     }
 
+    @Override
+    public void stop() {
+        if (serverController != null) {
+            serverController.leaveCluster();
+            serverController.closeLog();
+        }
+    }
+
     public static void main(String[] args) {
         launch(args);
     }
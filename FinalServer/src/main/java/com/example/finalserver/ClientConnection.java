@@ -0,0 +1,399 @@
+package com.example.finalserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outbound side of one client socket. Senders only enqueue; a writer task owned by the
+ * connection drains the bounded queue, so a client with a full TCP window only delays itself.
+ * <p>
+ * The writer sends whatever is queued in one gathering write. By default it writes as soon as the
+ * queue is empty; with {@code chat.flush.lingerMicros} it waits up to that long after the first
+ * frame for more, unless {@code chat.flush.maxFrames} or {@code chat.flush.maxBytes} fill first.
+ * <p>
+ * A full queue is handled by the {@link SlowConsumerPolicy}. A client the server gives up on,
+ * after a failed write, as a slow consumer or when it times out, is evicted: its socket is closed at once and the
+ * eviction listener takes it out of the registry, instead of waiting for its reader to notice.
+ */
+public class ClientConnection {
+    public static final int QUEUE_CAPACITY = Integer.getInteger("chat.outbound.capacity", 1024);
+    public static final int MAX_BATCH = Integer.getInteger("chat.flush.maxFrames", 64);
+    public static final int MAX_BATCH_BYTES = Integer.getInteger("chat.flush.maxBytes", 64 * 1024);
+    private static final long LINGER_NANOS = TimeUnit.MICROSECONDS.toNanos(Long.getLong("chat.flush.lingerMicros", 0));
+
+    // Marks the end of the queue; the writer closes the socket after it
+    private static final MessageFrame CLOSE = MessageFrame.of("");
+
+    private final String name;
+    private final Socket socket;
+    private final BlockingQueue<MessageFrame> outbound;
+    // True if the client negotiated FrameProtocol framing
+    private final boolean binary;
+    // True if the client also negotiated FrameCompression
+    private final boolean compressed;
+    private final AtomicLong dropped = new AtomicLong();
+    private final SlowConsumerPolicy policy = SlowConsumerPolicy.CONFIGURED;
+    private final int highWater;
+    // When the queue last rose above the high-water mark; 0 while it is below
+    private volatile long overSince;
+    private final AtomicBoolean evicted = new AtomicBoolean();
+    private volatile Runnable evictionListener;
+    // Null if nobody is collecting metrics, e.g. in benchmarks
+    private final ServerMetrics metrics;
+    // Broadcasts held while the client is busy; null while it is available
+    private volatile DigestQueue deferred;
+    // Set once the client asked for REPLAY_AT positions after its journaled frames
+    private volatile boolean tracksPositions;
+    private volatile boolean closed;
+    // Why the server closed this connection; null if it was not closed from this side
+    private volatile ServerMetrics.DisconnectReason closeReason;
+
+    public ClientConnection(String name, Socket socket, Executor writerExecutor) {
+        this(name, socket, writerExecutor, false);
+    }
+
+    public ClientConnection(String name, Socket socket, Executor writerExecutor, boolean binary) {
+        this(name, socket, writerExecutor, binary, QUEUE_CAPACITY);
+    }
+
+    public ClientConnection(String name, Socket socket, Executor writerExecutor, boolean binary, boolean compressed,
+                            ServerMetrics metrics) {
+        this(name, socket, writerExecutor, binary, compressed, QUEUE_CAPACITY, metrics);
+    }
+
+    public ClientConnection(String name, Socket socket, Executor writerExecutor, boolean binary, int capacity) {
+        this(name, socket, writerExecutor, binary, false, capacity, null);
+    }
+
+    public ClientConnection(String name, Socket socket, Executor writerExecutor, boolean binary, boolean compressed,
+                            int capacity, ServerMetrics metrics) {
+        this.name = name;
+        this.socket = socket;
+        this.binary = binary;
+        this.compressed = compressed;
+        this.metrics = metrics;
+        this.outbound = new ArrayBlockingQueue<>(capacity);
+        this.highWater = (int) SlowConsumerPolicy.highWater(capacity);
+        writerExecutor.execute(this::drain);
+    }
+
+    public boolean send(String message) {
+        return send(MessageFrame.of(message));
+    }
+
+    // Queues a frame for the client; returns false if it was dropped because the queue is full
+    public boolean send(MessageFrame frame) {
+        if (closed) {
+            return false;
+        }
+        boolean queued = outbound.offer(frame);
+        if (!queued && policy == SlowConsumerPolicy.DROP_OLDEST) {
+            queued = replaceOldest(frame);
+        }
+        if (!queued) {
+            drop();
+        }
+        if (policy == SlowConsumerPolicy.DISCONNECT) {
+            checkBacklog();
+        }
+        return queued;
+    }
+
+    // Discards the oldest unsent frame to make room for this one
+    private boolean replaceOldest(MessageFrame frame) {
+        MessageFrame oldest = outbound.poll();
+        if (oldest == CLOSE) {
+            // Closed meanwhile; the marker must stay last
+            outbound.offer(CLOSE);
+            return false;
+        }
+        if (oldest != null) {
+            drop();
+        }
+        return outbound.offer(frame);
+    }
+
+    private void drop() {
+        dropped.incrementAndGet();
+        if (metrics != null) {
+            metrics.dropped(1);
+        }
+    }
+
+    // Evicts the client once its queue has stayed above the high-water mark for the grace period
+    private void checkBacklog() {
+        if (outbound.size() < highWater) {
+            if (overSince != 0) {
+                overSince = 0;
+            }
+            return;
+        }
+        long now = System.nanoTime();
+        long since = overSince;
+        if (since == 0) {
+            overSince = now | 1;
+        } else if (now - since > SlowConsumerPolicy.GRACE_NANOS) {
+            System.err.println("Client not reading, evicting: " + name);
+            evict(ServerMetrics.DisconnectReason.SLOW_CONSUMER);
+        }
+    }
+
+    // Run once when the client is evicted, before its socket is closed; typically unregisters it
+    public void setEvictionListener(Runnable listener) {
+        evictionListener = listener;
+        if (evicted.get()) {
+            listener.run();
+        }
+    }
+
+    public boolean isEvicted() {
+        return evicted.get();
+    }
+
+    // Gives up on the client: unregisters it and closes the socket, which also unblocks a stuck writer
+    public void evict(ServerMetrics.DisconnectReason reason) {
+        if (closeReason == null) {
+            closeReason = reason;
+        }
+        closed = true;
+        if (!evicted.compareAndSet(false, true)) {
+            return;
+        }
+        if (metrics != null) {
+            metrics.evicted();
+        }
+        Runnable listener = evictionListener;
+        if (listener != null) {
+            listener.run();
+        }
+        abort(reason);
+    }
+
+    // Closes the socket now without flushing the queue; the writer and a blocked reader both fail at once
+    public void abort(ServerMetrics.DisconnectReason reason) {
+        if (closeReason == null) {
+            closeReason = reason;
+        }
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    // Broadcast traffic: held in the digest while the client is busy, otherwise sent as usual
+    public boolean deliver(MessageFrame frame) {
+        DigestQueue digest = deferred;
+        if (digest != null) {
+            synchronized (this) {
+                // Re-checked under the lock so nothing lands in a digest that was already flushed
+                if (deferred == digest) {
+                    digest.add(frame);
+                    return true;
+                }
+            }
+        }
+        return send(frame);
+    }
+
+    // Going busy starts holding broadcasts; going available sends them as one digest frame
+    public synchronized void setBusy(boolean busy) {
+        if (busy) {
+            if (deferred == null) {
+                deferred = new DigestQueue();
+            }
+            return;
+        }
+        DigestQueue digest = deferred;
+        if (digest != null) {
+            MessageFrame frame = digest.toDigest();
+            if (frame != null) {
+                send(frame);
+            }
+            deferred = null;
+        }
+    }
+
+    public boolean isBusy() {
+        return deferred != null;
+    }
+
+    // Follows every journaled frame from now on with its position, in the same write
+    public void trackPositions() {
+        tracksPositions = true;
+    }
+
+    public synchronized int deferredCount() {
+        DigestQueue digest = deferred;
+        return digest != null ? digest.size() : 0;
+    }
+
+    // Lets the writer finish what is already queued, then closes the socket
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        while (!outbound.offer(CLOSE)) {
+            // Make room for the close marker by discarding the oldest undelivered frame
+            outbound.poll();
+            dropped.incrementAndGet();
+        }
+    }
+
+    // Records why the connection is being closed; the first reason given is kept
+    public void close(ServerMetrics.DisconnectReason reason) {
+        if (closeReason == null) {
+            closeReason = reason;
+        }
+        close();
+    }
+
+    public ServerMetrics.DisconnectReason closeReason() {
+        return closeReason;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public int queueDepth() {
+        return outbound.size();
+    }
+
+    public long droppedCount() {
+        return dropped.get();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private void drain() {
+        List<MessageFrame> batch = new ArrayList<>(MAX_BATCH);
+        // Room for a position after every frame
+        ByteBuffer[] buffers = new ByteBuffer[2 * MAX_BATCH];
+        // Owned by this writer, which compresses frames in the order it writes them
+        FrameCompression.Encoder encoder = compressed ? new FrameCompression.Encoder() : null;
+        try {
+            SocketChannel channel = socket.getChannel();
+            OutputStream out = channel == null ? socket.getOutputStream() : null;
+            while (true) {
+                batch.add(outbound.take());
+                long deadline = System.nanoTime() + LINGER_NANOS;
+                int count = 0;
+                int buffered = 0;
+                long bytes = 0;
+                boolean closing = false;
+                while (true) {
+                    outbound.drainTo(batch, MAX_BATCH - count - batch.size());
+                    for (MessageFrame frame : batch) {
+                        if (frame == CLOSE) {
+                            closing = true;
+                            break;
+                        }
+                        buffers[buffered] = encoder != null && encoder.wants(frame)
+                                ? encoder.deflate(frame.binaryBuffer()) : frame.buffer(binary, compressed);
+                        bytes += buffers[buffered++].remaining();
+                        MessageFrame position = tracksPositions ? frame.positionFrame() : null;
+                        if (position != null) {
+                            buffers[buffered] = position.buffer(binary, compressed);
+                            bytes += buffers[buffered++].remaining();
+                        }
+                        count++;
+                    }
+                    batch.clear();
+                    if (closing || LINGER_NANOS == 0 || count == MAX_BATCH || bytes >= MAX_BATCH_BYTES) {
+                        break;
+                    }
+                    // Hold the write back briefly for more frames: fewer, larger writes for a little latency
+                    MessageFrame next = outbound.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                if (count > 0) {
+                    if (channel != null) {
+                        writeFully(channel, buffers, buffered);
+                    } else {
+                        writeCopied(out, buffers, buffered);
+                    }
+                    if (metrics != null) {
+                        metrics.flushed(count);
+                    }
+                }
+                if (closing) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing to client " + name + ": " + e.getMessage());
+            if (!closed) {
+                // The first failed write evicts the client rather than leaving it registered
+                evict(ServerMetrics.DisconnectReason.WRITE_ERROR);
+            } else if (closeReason == null) {
+                closeReason = ServerMetrics.DisconnectReason.WRITE_ERROR;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closed = true;
+            outbound.clear();
+            if (encoder != null) {
+                encoder.close();
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    // One gathering write hands the whole batch of shared buffers to the kernel
+    private static void writeFully(SocketChannel channel, ByteBuffer[] buffers, int count) throws IOException {
+        int offset = 0;
+        while (offset < count) {
+            channel.write(buffers, offset, count - offset);
+            while (offset < count && !buffers[offset].hasRemaining()) {
+                buffers[offset++] = null;
+            }
+        }
+    }
+
+    // Sockets without a channel get the batch copied into a single array and written once
+    private static void writeCopied(OutputStream out, ByteBuffer[] buffers, int count) throws IOException {
+        int total = 0;
+        for (int i = 0; i < count; i++) {
+            total += buffers[i].remaining();
+        }
+        byte[] bytes = new byte[total];
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            int length = buffers[i].remaining();
+            buffers[i].get(bytes, position, length);
+            position += length;
+            buffers[i] = null;
+        }
+        out.write(bytes);
+        out.flush();
+    }
+}
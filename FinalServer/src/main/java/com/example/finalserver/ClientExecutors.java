@@ -0,0 +1,96 @@
+package com.example.finalserver;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses how per-client loops are run, selected with {@code -Dchat.executor=platform|pool|virtual}.
+ * Virtual threads are looked up reflectively so the servers still build for Java 17; on older
+ * runtimes the virtual mode falls back to one platform thread per client.
+ */
+public final class ClientExecutors {
+    public static final String MODE = System.getProperty("chat.executor", "platform");
+    private static final int BLOCKING_THREADS = Integer.getInteger("chat.executor.blockingThreads", 8);
+
+    private static final boolean VIRTUAL = MODE.equalsIgnoreCase("virtual") && virtualThreadsSupported();
+
+    // JDBC drivers block inside synchronized sections, which would pin a virtual thread's carrier;
+    // in virtual mode those calls are handed to this small platform pool instead
+    private static ExecutorService blockingExecutor;
+
+    private ClientExecutors() {
+    }
+
+    public static ExecutorService newClientExecutor(String name) {
+        if (VIRTUAL) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads unavailable, using platform threads: " + e.getMessage());
+            }
+        } else if (MODE.equalsIgnoreCase("virtual")) {
+            System.err.println("Virtual threads need Java 21 or newer, using platform threads.");
+        }
+
+        if (MODE.equalsIgnoreCase("pool")) {
+            return Executors.newCachedThreadPool(namedThreads(name));
+        }
+        // One platform thread per task, the original behaviour
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 0L, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), namedThreads(name));
+    }
+
+    public static boolean isVirtual() {
+        return VIRTUAL;
+    }
+
+    // Runs a blocking call, moving it off the current thread when that thread is virtual
+    public static <T> T callBlocking(Callable<T> call) throws Exception {
+        if (!VIRTUAL) {
+            return call.call();
+        }
+        try {
+            return blockingExecutor().submit(call).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    private static synchronized ExecutorService blockingExecutor() {
+        if (blockingExecutor == null) {
+            blockingExecutor = Executors.newFixedThreadPool(BLOCKING_THREADS, namedThreads("blocking-io"));
+        }
+        return blockingExecutor;
+    }
+
+    static ThreadFactory namedThreads(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static boolean virtualThreadsSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
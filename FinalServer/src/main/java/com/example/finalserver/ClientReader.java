@@ -0,0 +1,107 @@
+package com.example.finalserver;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads a client's input as newline-terminated lines, or as {@link FrameProtocol} frames once
+ * the connection has switched to binary. Works on bytes so no input is buffered past the
+ * handshake line by a character decoder.
+ */
+public class ClientReader implements Closeable {
+    private static final int MAX_LINE_LENGTH = Integer.getInteger("chat.maxLineLength", 8192);
+
+    private final DataInputStream in;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+    private boolean binary;
+    // Set once the client negotiated compressed frames
+    private FrameCompression.Decoder decoder;
+
+    public ClientReader(InputStream in) {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+    }
+
+    public void switchToBinary() {
+        switchToBinary(false);
+    }
+
+    public void switchToBinary(boolean compressed) {
+        binary = true;
+        if (compressed) {
+            decoder = new FrameCompression.Decoder();
+        }
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    // Returns the next line without its terminator, or null at end of stream
+    public String readLine() throws IOException {
+        line.reset();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                return decodeLine();
+            }
+            if (line.size() >= MAX_LINE_LENGTH) {
+                throw new IOException("Line exceeds " + MAX_LINE_LENGTH + " bytes");
+            }
+            line.write(b);
+        }
+        return line.size() > 0 ? decodeLine() : null;
+    }
+
+    // Returns the next line or frame, or null at end of stream
+    public InboundMessage read() throws IOException {
+        if (!binary) {
+            String text = readLine();
+            return text != null ? InboundMessage.line(text) : null;
+        }
+
+        int opcode = in.read();
+        if (opcode == -1) {
+            return null;
+        }
+        try {
+            int length = in.readInt();
+            if (length < 0 || length > FrameProtocol.MAX_PAYLOAD) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            if (opcode == FrameProtocol.DEFLATED) {
+                if (decoder == null) {
+                    throw new IOException("Compressed frame without negotiating compression");
+                }
+                return decoder.inflate(payload);
+            }
+            return InboundMessage.frame((byte) opcode, payload);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (decoder != null) {
+            decoder.close();
+        }
+        in.close();
+    }
+
+    private String decodeLine() {
+        int length = line.size();
+        byte[] bytes = line.toByteArray();
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+}
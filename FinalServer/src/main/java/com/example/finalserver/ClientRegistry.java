@@ -0,0 +1,90 @@
+package com.example.finalserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Connected clients, safe to mutate from every client thread while a broadcast iterates it.
+ * Backed by {@link ConcurrentHashMap}, so lookups by username are O(1) and iteration never
+ * throws {@link java.util.ConcurrentModificationException}.
+ */
+public class ClientRegistry<C> {
+    // Usernames end up in length-prefixed fields (journal records, CHAT_FROM frames), so they are bounded
+    public static final int MAX_USERNAME_BYTES = Integer.getInteger("chat.maxUsernameBytes", 64);
+    public static final String INVALID_USERNAME = "Invalid username: at most " + MAX_USERNAME_BYTES + " bytes";
+
+    private final Set<C> clients = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, C> byUsername = new ConcurrentHashMap<>();
+    private final Set<String> busyUsernames = ConcurrentHashMap.newKeySet();
+
+    public static boolean isValidUsername(String username) {
+        return username.getBytes(StandardCharsets.UTF_8).length <= MAX_USERNAME_BYTES;
+    }
+
+    // Tracks a client that has not identified itself yet
+    public void add(C client) {
+        clients.add(client);
+    }
+
+    // Adds or names a client and returns the client previously holding that username, if any.
+    // The previous client stays registered until it is removed, so its owner can shut it down.
+    public C add(String username, C client) {
+        clients.add(client);
+        C previous = byUsername.put(username, client);
+        return previous != client ? previous : null;
+    }
+
+    // Removes the client; the username entry is only dropped if it still belongs to this client
+    public boolean remove(String username, C client) {
+        boolean removed = clients.remove(client);
+        if (username != null && byUsername.remove(username, client)) {
+            busyUsernames.remove(username);
+        }
+        return removed;
+    }
+
+    public C remove(String username) {
+        C client = byUsername.remove(username);
+        busyUsernames.remove(username);
+        if (client != null) {
+            clients.remove(client);
+        }
+        return client;
+    }
+
+    public C get(String username) {
+        return byUsername.get(username);
+    }
+
+    public boolean contains(String username) {
+        return byUsername.containsKey(username);
+    }
+
+    // Weakly consistent view; clients added or removed during iteration may or may not be seen
+    public Collection<C> clients() {
+        return Collections.unmodifiableSet(clients);
+    }
+
+    public Set<String> usernames() {
+        return Collections.unmodifiableSet(byUsername.keySet());
+    }
+
+    public int size() {
+        return clients.size();
+    }
+
+    public void setBusy(String username, boolean busy) {
+        if (busy) {
+            busyUsernames.add(username);
+        } else {
+            busyUsernames.remove(username);
+        }
+    }
+
+    public boolean isBusy(String username) {
+        return busyUsernames.contains(username);
+    }
+}
@@ -0,0 +1,543 @@
+package com.example.finalserver;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Links server processes into a mesh so a broadcast reaches every user whichever node holds
+ * their socket. Each node listens on {@code chat.cluster.port} and dials the
+ * {@code chat.cluster.peers} it is given (host:port, comma separated), redialling when a link
+ * drops. A link carries traffic both ways, so it is enough for one node of each pair to list the other.
+ * <p>
+ * Room broadcasts and presence changes are encoded once and sent to every peer. A node that
+ * receives one for the first time delivers it locally and forwards it to its other peers, so a
+ * partial mesh still reaches everyone; the (origin, sequence) of recent messages is remembered
+ * to drop the copies that arrive by other paths.
+ * <p>
+ * Presence is soft state kept per origin node. Besides the online/offline changes, every node
+ * floods a snapshot of its local users each {@code chat.cluster.presenceMillis} and sends one
+ * down every new link, together with the latest snapshot it holds from each other node. A node
+ * that has not been heard from for {@code chat.cluster.presenceTimeoutMillis} is forgotten with
+ * all its users, whether it was adjacent or several hops away. A node that shuts down floods an
+ * empty snapshot first, so the others drop its users straight away instead of waiting for that.
+ */
+public class ClusterNode {
+    public static final int PORT = Integer.getInteger("chat.cluster.port", 0);
+    public static final String PEERS = System.getProperty("chat.cluster.peers", "");
+    public static final String NAME = System.getProperty("chat.cluster.name", "node-" + PORT);
+    public static final int LINK_QUEUE_CAPACITY = Integer.getInteger("chat.cluster.queueCapacity", 4096);
+    public static final int DEDUP_WINDOW = Integer.getInteger("chat.cluster.dedupWindow", 65536);
+    public static final long PRESENCE_MILLIS = Long.getLong("chat.cluster.presenceMillis", 5000);
+    public static final long PRESENCE_TIMEOUT_MILLIS = Long.getLong("chat.cluster.presenceTimeoutMillis", 3 * PRESENCE_MILLIS);
+    private static final long MAX_REDIAL_MILLIS = 10_000;
+    // How long close() waits for the links to send the empty snapshot
+    private static final long LEAVE_MILLIS = 1000;
+    private static final int MAX_MESSAGE = FrameProtocol.MAX_PAYLOAD + 64 * 1024;
+
+    private static final byte HELLO = 1;
+    private static final byte BROADCAST = 2;
+    private static final byte PRESENCE = 3;
+    private static final byte SNAPSHOT = 4;
+    // Queued by Link.finish() after the last message, compared by identity
+    private static final byte[] FINISH = new byte[0];
+
+    /** Called on cluster threads for traffic that originated on other nodes. */
+    public interface Listener {
+        void onBroadcast(Set<String> rooms, MessageFrame frame);
+
+        void onPresence(String username, boolean online, String node);
+
+        // Usernames connected to this node, for the presence snapshots sent to the cluster
+        Collection<String> localUsers();
+    }
+
+    private final String nodeId;
+    private final Listener listener;
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final List<Link> links = new CopyOnWriteArrayList<>();
+    // Recently seen "origin sequence" keys, oldest first
+    private final Map<String, Boolean> seen = new LinkedHashMap<>(1024, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > DEDUP_WINDOW;
+        }
+    };
+    // Users online on other nodes, by the node that announced them
+    private final Map<String, String> remoteUsers = new ConcurrentHashMap<>();
+    // Presence state of every other node we have heard from; updates are made holding the map
+    private final Map<String, Origin> origins = new ConcurrentHashMap<>();
+    private final ThreadFactory threads = ClientExecutors.namedThreads("cluster");
+    private final ScheduledExecutorService presence = Executors.newSingleThreadScheduledExecutor(threads);
+    private final ServerSocket serverSocket;
+    private volatile boolean running = true;
+
+    public ClusterNode(String name, int port, List<InetSocketAddress> peers, Listener listener) throws IOException {
+        // The start time keeps a restarted node's sequence numbers from looking like duplicates
+        this.nodeId = name + "@" + System.currentTimeMillis();
+        this.listener = listener;
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(port));
+        threads.newThread(this::acceptLinks).start();
+        for (InetSocketAddress peer : peers) {
+            threads.newThread(() -> dial(peer)).start();
+        }
+        presence.scheduleWithFixedDelay(this::refreshPresence, PRESENCE_MILLIS, PRESENCE_MILLIS, TimeUnit.MILLISECONDS);
+        System.out.println("Cluster node " + nodeId + " listening on port " + port + ", peers " + peers);
+    }
+
+    // Starts the node configured by system properties, or returns null if clustering is off
+    public static ClusterNode startDefault(Listener listener) {
+        if (PORT <= 0) {
+            return null;
+        }
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (String peer : PEERS.split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) {
+                continue;
+            }
+            int colon = peer.lastIndexOf(':');
+            if (colon < 0) {
+                System.err.println("Ignoring cluster peer without a port: " + peer);
+                continue;
+            }
+            peers.add(new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+        }
+        try {
+            return new ClusterNode(NAME, PORT, peers, listener);
+        } catch (IOException e) {
+            System.err.println("Cluster mode disabled: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public String nodeId() {
+        return nodeId;
+    }
+
+    // Sends a broadcast that was delivered locally on to the rest of the cluster
+    public void publish(Set<String> rooms, MessageFrame frame) {
+        byte[] sender = frame.senderBytes();
+        byte[] body = frame.bodyBytes();
+        relay(encode(BROADCAST, nodeId, nextSequence.incrementAndGet(), out -> {
+            out.writeShort(rooms.size());
+            for (String room : rooms) {
+                out.writeUTF(room);
+            }
+            out.writeInt(sender != null ? sender.length : -1);
+            if (sender != null) {
+                out.write(sender);
+            }
+            out.writeInt(body.length);
+            out.write(body);
+        }), null);
+    }
+
+    public void publishPresence(String username, boolean online) {
+        relay(encode(PRESENCE, nodeId, nextSequence.incrementAndGet(), out -> {
+            out.writeUTF(username);
+            out.writeBoolean(online);
+        }), null);
+    }
+
+    // Usernames online on other nodes
+    public Set<String> remoteUsers() {
+        return Collections.unmodifiableSet(remoteUsers.keySet());
+    }
+
+    // Tells the other nodes this node's users are gone, then drops the links
+    public void close() {
+        running = false;
+        presence.shutdownNow();
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        relay(snapshot(Collections.emptyList()), null);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LEAVE_MILLIS);
+        for (Link link : links) {
+            link.finish(deadline);
+        }
+    }
+
+    private void acceptLinks() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                threads.newThread(() -> runLink(socket)).start();
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Error accepting cluster link: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Keeps a link to one configured peer open, backing off between attempts
+    private void dial(InetSocketAddress peer) {
+        long backoffMillis = 250;
+        while (running) {
+            try {
+                Socket socket = new Socket();
+                socket.connect(peer, 5000);
+                backoffMillis = 250;
+                runLink(socket);
+            } catch (IOException e) {
+                // Peer not up yet or unreachable; try again below
+            }
+            try {
+                Thread.sleep(backoffMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoffMillis = Math.min(MAX_REDIAL_MILLIS, backoffMillis * 2);
+        }
+    }
+
+    // Reads one link until it closes; writing is done by the link's own thread
+    private void runLink(Socket socket) {
+        Link link;
+        try {
+            socket.setTcpNoDelay(true);
+            link = new Link(socket);
+        } catch (IOException e) {
+            closeQuietly(socket);
+            return;
+        }
+        links.add(link);
+        link.send(encode(HELLO, nodeId, 0, out -> { }));
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            while (running) {
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_MESSAGE) {
+                    throw new IOException("Invalid cluster message length: " + length);
+                }
+                byte[] message = new byte[length + 4];
+                in.readFully(message, 4, length);
+                message[0] = (byte) (length >>> 24);
+                message[1] = (byte) (length >>> 16);
+                message[2] = (byte) (length >>> 8);
+                message[3] = (byte) length;
+                receive(link, message);
+            }
+        } catch (EOFException e) {
+            // Peer closed the link
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("Cluster link to " + describe(link) + " lost: " + e.getMessage());
+            }
+        } finally {
+            // Users behind the link are not forgotten here; another path may still reach them,
+            // and those that are really gone expire with their node
+            links.remove(link);
+            link.close();
+        }
+    }
+
+    private void receive(Link link, byte[] message) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(message, 4, message.length - 4));
+        byte type = in.readByte();
+        String origin = in.readUTF();
+        long sequence = in.readLong();
+        if (type == HELLO) {
+            link.peerId = origin;
+            System.out.println("Cluster link up with " + origin);
+            // Bring the peer up to date without waiting for the next round of snapshots
+            link.send(snapshot(listener.localUsers()));
+            for (Origin state : origins.values()) {
+                byte[] latest = state.snapshot;
+                if (latest != null) {
+                    link.send(latest);
+                }
+            }
+            return;
+        }
+        if (origin.equals(nodeId) || !firstSeen(origin + " " + sequence)) {
+            return;
+        }
+        Origin heard = origins.get(origin);
+        if (heard != null) {
+            heard.lastHeard = System.nanoTime();
+        }
+        // Pass it on before delivering so the rest of the mesh is not held up by local work
+        relay(message, link);
+
+        if (type == BROADCAST) {
+            int roomCount = in.readUnsignedShort();
+            Set<String> rooms = new LinkedHashSet<>();
+            for (int i = 0; i < roomCount; i++) {
+                rooms.add(in.readUTF());
+            }
+            int senderLength = in.readInt();
+            if (senderLength > MessageFrame.MAX_SENDER_BYTES) {
+                throw new IOException("Invalid sender length from " + origin + ": " + senderLength);
+            }
+            byte[] sender = null;
+            if (senderLength >= 0) {
+                sender = new byte[senderLength];
+                in.readFully(sender);
+            }
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            listener.onBroadcast(rooms, MessageFrame.encoded(sender, body));
+        } else if (type == PRESENCE) {
+            String username = in.readUTF();
+            boolean online = in.readBoolean();
+            synchronized (origins) {
+                Origin state = origin(origin, sequence);
+                if (state != null && (online ? state.users.add(username) : state.users.remove(username))) {
+                    changed(username, online, origin);
+                }
+            }
+        } else if (type == SNAPSHOT) {
+            int count = in.readInt();
+            Set<String> users = new HashSet<>();
+            for (int i = 0; i < count; i++) {
+                users.add(in.readUTF());
+            }
+            synchronized (origins) {
+                Origin state = origin(origin, sequence);
+                if (state != null) {
+                    state.snapshot = message;
+                    for (String username : state.users) {
+                        if (!users.contains(username)) {
+                            changed(username, false, origin);
+                        }
+                    }
+                    for (String username : users) {
+                        if (!state.users.contains(username)) {
+                            changed(username, true, origin);
+                        }
+                    }
+                    state.users = users;
+                }
+            }
+        }
+    }
+
+    // The presence state of a node, or null if this update is older than one already applied
+    private Origin origin(String origin, long sequence) {
+        Origin state = origins.computeIfAbsent(origin, o -> new Origin());
+        if (sequence < state.sequence) {
+            return null;
+        }
+        state.sequence = sequence;
+        return state;
+    }
+
+    private void changed(String username, boolean online, String origin) {
+        if (online) {
+            remoteUsers.put(username, origin);
+        } else {
+            remoteUsers.remove(username, origin);
+        }
+        listener.onPresence(username, online, origin);
+    }
+
+    private void refreshPresence() {
+        try {
+            relay(snapshot(listener.localUsers()), null);
+            expireOrigins();
+        } catch (RuntimeException e) {
+            System.err.println("Error refreshing cluster presence: " + e);
+        }
+    }
+
+    private byte[] snapshot(Collection<String> localUsers) {
+        List<String> users = new ArrayList<>(localUsers);
+        return encode(SNAPSHOT, nodeId, nextSequence.incrementAndGet(), out -> {
+            out.writeInt(users.size());
+            for (String username : users) {
+                out.writeUTF(username);
+            }
+        });
+    }
+
+    // A node that has gone quiet can no longer vouch for its users, however far away it is
+    private void expireOrigins() {
+        long now = System.nanoTime();
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(PRESENCE_TIMEOUT_MILLIS);
+        synchronized (origins) {
+            Iterator<Map.Entry<String, Origin>> iterator = origins.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Origin> entry = iterator.next();
+                if (now - entry.getValue().lastHeard < timeoutNanos) {
+                    continue;
+                }
+                iterator.remove();
+                System.out.println("Cluster node " + entry.getKey() + " has gone quiet, forgetting its "
+                        + entry.getValue().users.size() + " users");
+                for (String username : entry.getValue().users) {
+                    changed(username, false, entry.getKey());
+                }
+            }
+        }
+    }
+
+    private boolean firstSeen(String key) {
+        synchronized (seen) {
+            return seen.put(key, Boolean.TRUE) == null;
+        }
+    }
+
+    private void relay(byte[] message, Link except) {
+        for (Link link : links) {
+            if (link != except) {
+                link.send(message);
+            }
+        }
+    }
+
+    private interface Body {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    // [length:4][type:1][origin][sequence:8][body], built once and shared by every link
+    private static byte[] encode(byte type, String origin, long sequence, Body body) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            out.writeByte(type);
+            out.writeUTF(origin);
+            out.writeLong(sequence);
+            body.write(out);
+            byte[] message = bytes.toByteArray();
+            int length = message.length - 4;
+            message[0] = (byte) (length >>> 24);
+            message[1] = (byte) (length >>> 16);
+            message[2] = (byte) (length >>> 8);
+            message[3] = (byte) length;
+            return message;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String describe(Link link) {
+        return link.peerId != null ? link.peerId : String.valueOf(link.socket.getRemoteSocketAddress());
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    /** What this node knows about the users of one other node. */
+    private static final class Origin {
+        // Written holding the origins map
+        private Set<String> users = new HashSet<>();
+        private long sequence;
+        // The newest snapshot from the node, passed on to peers that link up later
+        private volatile byte[] snapshot;
+        private volatile long lastHeard = System.nanoTime();
+    }
+
+    /** One TCP connection to a peer, with a bounded queue drained by its own writer thread. */
+    private final class Link {
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(LINK_QUEUE_CAPACITY);
+        private final AtomicLong dropped = new AtomicLong();
+        private final CountDownLatch drained = new CountDownLatch(1);
+        private volatile String peerId;
+        private volatile boolean closed;
+
+        Link(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            threads.newThread(this::drain).start();
+        }
+
+        void send(byte[] message) {
+            if (!closed && !queue.offer(message) && dropped.incrementAndGet() % 1000 == 1) {
+                System.err.println("Cluster link to " + describe(this) + " is behind, dropping messages");
+            }
+        }
+
+        private void drain() {
+            List<byte[]> batch = new ArrayList<>();
+            try {
+                while (!closed) {
+                    byte[] first = queue.poll(1, TimeUnit.SECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch);
+                    boolean finishing = false;
+                    for (byte[] message : batch) {
+                        if (message == FINISH) {
+                            finishing = true;
+                            break;
+                        }
+                        out.write(message);
+                    }
+                    batch.clear();
+                    out.flush();
+                    if (finishing) {
+                        close();
+                    }
+                }
+            } catch (IOException e) {
+                // The reader sees the broken socket and cleans up
+                close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                drained.countDown();
+            }
+        }
+
+        // Sends what is already queued, then closes; gives up and closes anyway at the deadline
+        void finish(long deadlineNanos) {
+            if (!closed && queue.offer(FINISH)) {
+                try {
+                    drained.await(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            close();
+        }
+
+        void close() {
+            closed = true;
+            closeQuietly(socket);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.finalserver;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers credentials that the database has recently accepted, so a user reconnecting within
+ * the TTL is verified in memory. Only a salted SHA-256 of the password is kept, never the password.
+ */
+public class CredentialCache {
+    private static final int SALT_LENGTH = 16;
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    // Insertion order; with a fixed TTL this is also expiry order, so eviction only looks at the head
+    private final ConcurrentLinkedQueue<Entry> order = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final SecureRandom random = new SecureRandom();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public CredentialCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    // True only if the same password was verified against the database within the TTL
+    public boolean verify(String username, String password) {
+        Entry entry = entries.get(username);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+        if (System.nanoTime() - entry.expiresAtNanos > 0) {
+            entries.remove(username, entry);
+            misses.incrementAndGet();
+            return false;
+        }
+        if (!MessageDigest.isEqual(entry.hash, hash(entry.salt, password))) {
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+    // Records credentials the database has just accepted
+    public void put(String username, String password) {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        Entry entry = new Entry(username, salt, hash(salt, password), System.nanoTime() + ttlNanos);
+        entries.put(username, entry);
+        order.add(entry);
+        queued.incrementAndGet();
+        evict();
+    }
+
+    // Call whenever a user's password may have changed (signup, password change, deletion)
+    public void invalidate(String username) {
+        entries.remove(username);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    private void evict() {
+        long now = System.nanoTime();
+        Entry head;
+        while ((head = order.peek()) != null) {
+            boolean stale = entries.get(head.username) != head;
+            boolean expired = now - head.expiresAtNanos > 0;
+            boolean overCapacity = entries.size() > maxEntries || queued.get() > maxEntries * 2;
+            if (!stale && !expired && !overCapacity) {
+                break;
+            }
+            if (order.remove(head)) {
+                queued.decrementAndGet();
+                entries.remove(head.username, head);
+            }
+        }
+    }
+
+    private static byte[] hash(byte[] salt, String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            return digest.digest(password.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java runtime is required to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Entry {
+        private final String username;
+        private final byte[] salt;
+        private final byte[] hash;
+        private final long expiresAtNanos;
+
+        private Entry(String username, byte[] salt, byte[] hash, long expiresAtNanos) {
+            this.username = username;
+            this.salt = salt;
+            this.hash = hash;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+}
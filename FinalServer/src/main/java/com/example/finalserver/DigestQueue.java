@@ -0,0 +1,56 @@
+package com.example.finalserver;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Broadcasts held back for a busy client. Only references to the shared frames are kept, capped
+ * by count and by encoded size so the digest fits in one frame; the oldest go first when full.
+ * Not thread safe, callers synchronize.
+ */
+public class DigestQueue {
+    public static final int CAPACITY = Integer.getInteger("chat.digest.capacity", 256);
+    public static final int MAX_BYTES = Integer.getInteger("chat.digest.maxBytes", 256 * 1024);
+
+    private final ArrayDeque<MessageFrame> frames = new ArrayDeque<>();
+    private final int capacity;
+    private final int maxBytes;
+    private int bytes;
+    private int dropped;
+
+    public DigestQueue() {
+        this(CAPACITY, MAX_BYTES);
+    }
+
+    public DigestQueue(int capacity, int maxBytes) {
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+    }
+
+    public void add(MessageFrame frame) {
+        frames.add(frame);
+        bytes += frame.size();
+        while (frames.size() > capacity || (bytes > maxBytes && frames.size() > 1)) {
+            bytes -= frames.poll().size();
+            dropped++;
+        }
+    }
+
+    public boolean isEmpty() {
+        return frames.isEmpty() && dropped == 0;
+    }
+
+    public int size() {
+        return frames.size();
+    }
+
+    // Everything held so far as one frame, or null if nothing was held
+    public MessageFrame toDigest() {
+        if (isEmpty()) {
+            return null;
+        }
+        String header = frames.size() + " message(s) while you were busy"
+                + (dropped > 0 ? " (" + dropped + " older dropped)" : "") + ":";
+        return MessageFrame.digest(header, List.copyOf(frames));
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.finalserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw deflate for binary connections that negotiated it with {@link FrameProtocol#BINARY_HELLO_DEFLATE}.
+ * A {@link FrameProtocol#DEFLATED} frame carries a whole compressed frame, header included.
+ * <p>
+ * Server to client, frames of at least {@code chat.compression.threshold} bytes go through the
+ * connection's own deflate stream ({@link Encoder}), sync-flushed at the end of every frame, so
+ * each message is compressed against the ones before it. A broadcast to at least
+ * {@code chat.compression.sharedFanOut} recipients is instead compressed once on its own,
+ * without a shared window, and that copy is sent to every compressing recipient; compressing it
+ * again per connection would cost more CPU than its better ratio saves on the wire.
+ * <p>
+ * Client to server, the client keeps one deflate stream per connection and sync-flushes it at the
+ * end of each message; {@link Decoder} is the matching inflate stream.
+ */
+public final class FrameCompression {
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("chat.compression.enabled", "true"));
+    public static final int THRESHOLD = Integer.getInteger("chat.compression.threshold", 256);
+    public static final int LEVEL = Integer.getInteger("chat.compression.level", 6);
+    public static final int SHARED_FAN_OUT = Integer.getInteger("chat.compression.sharedFanOut", 32);
+
+    // Deflaters hold native buffers, so they are reused by whichever thread compresses next
+    private static final Queue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<>();
+
+    private FrameCompression() {
+    }
+
+    // Wraps an encoded frame in a DEFLATED frame; returns null if that would not make it smaller
+    static ByteBuffer deflate(ByteBuffer frame) {
+        byte[] input = new byte[frame.remaining()];
+        frame.duplicate().get(input);
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            deflater = new Deflater(LEVEL, true);
+        }
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            byte[] output = new byte[input.length];
+            int length = FrameProtocol.HEADER_LENGTH;
+            while (!deflater.finished()) {
+                if (length == output.length) {
+                    return null;
+                }
+                length += deflater.deflate(output, length, output.length - length);
+            }
+            ByteBuffer encoded = ByteBuffer.wrap(output, 0, length);
+            encoded.put(FrameProtocol.DEFLATED).putInt(length - FrameProtocol.HEADER_LENGTH).rewind();
+            return encoded.asReadOnlyBuffer();
+        } finally {
+            deflater.reset();
+            DEFLATERS.offer(deflater);
+        }
+    }
+
+    /**
+     * One connection's deflate stream to its client. The window carries over from frame to frame;
+     * every frame it compresses must be sent, in order, or the client can no longer inflate the
+     * stream. Not thread safe; used by whichever thread writes the connection's frames.
+     */
+    public static final class Encoder {
+        private final Deflater deflater = new Deflater(LEVEL, true);
+        private byte[] output = new byte[1024];
+
+        // True if the frame should go through this stream rather than as the shared DEFLATED copy
+        public boolean wants(MessageFrame frame) {
+            return frame.fanOut() < SHARED_FAN_OUT && frame.binaryBuffer().remaining() >= THRESHOLD;
+        }
+
+        // Compresses an encoded frame into a DEFLATED_STREAM frame, ending with a sync flush
+        public ByteBuffer deflate(ByteBuffer frame) {
+            byte[] input = new byte[frame.remaining()];
+            frame.duplicate().get(input);
+            deflater.setInput(input);
+            int length = FrameProtocol.HEADER_LENGTH;
+            while (true) {
+                if (length == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                length += deflater.deflate(output, length, output.length - length, Deflater.SYNC_FLUSH);
+                // A flush that leaves output space unused has written everything
+                if (length < output.length) {
+                    break;
+                }
+            }
+            ByteBuffer encoded = ByteBuffer.allocate(length);
+            encoded.put(FrameProtocol.DEFLATED_STREAM).putInt(length - FrameProtocol.HEADER_LENGTH)
+                    .put(output, FrameProtocol.HEADER_LENGTH, length - FrameProtocol.HEADER_LENGTH).flip();
+            return encoded;
+        }
+
+        public void close() {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Inflates the DEFLATED frames of one client's stream. Not thread safe; each connection reads
+     * its frames in order on one thread at a time.
+     */
+    public static final class Decoder {
+        private final Inflater inflater = new Inflater(true);
+        private byte[] output = new byte[1024];
+
+        // Returns the frame carried by a DEFLATED frame's payload
+        public InboundMessage inflate(byte[] payload) throws IOException {
+            int maxLength = FrameProtocol.HEADER_LENGTH + FrameProtocol.MAX_PAYLOAD;
+            inflater.setInput(payload);
+            int length = 0;
+            try {
+                while (true) {
+                    if (length == output.length) {
+                        if (length >= maxLength) {
+                            throw new IOException("Compressed frame inflates past " + maxLength + " bytes");
+                        }
+                        output = Arrays.copyOf(output, Math.min(maxLength, length * 2));
+                    }
+                    int n = inflater.inflate(output, length, output.length - length);
+                    length += n;
+                    if (n == 0 && length < output.length) {
+                        // The client flushed at the end of the message, so all of it is out
+                        break;
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Invalid compressed frame: " + e.getMessage());
+            }
+
+            if (length < FrameProtocol.HEADER_LENGTH) {
+                throw new IOException("Compressed frame too short: " + length);
+            }
+            ByteBuffer frame = ByteBuffer.wrap(output, 0, length);
+            byte opcode = frame.get();
+            int payloadLength = frame.getInt();
+            if (opcode == FrameProtocol.DEFLATED || payloadLength != length - FrameProtocol.HEADER_LENGTH) {
+                throw new IOException("Invalid compressed frame");
+            }
+            return InboundMessage.frame(opcode, Arrays.copyOfRange(output, FrameProtocol.HEADER_LENGTH, length));
+        }
+
+        public void close() {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.finalserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Length-prefixed binary framing negotiated alongside the newline text protocol.
+ * A client opts in by sending {@link #BINARY_HELLO} as its first line; once the server answers
+ * {@link #BINARY_ACCEPT}, both directions switch to frames of
+ * {@code [opcode:1][payload length:4, big-endian][payload]}. Sending {@link #BINARY_HELLO_DEFLATE}
+ * instead also asks for {@link FrameCompression}, which the server grants by answering
+ * {@link #BINARY_ACCEPT_DEFLATE}.
+ */
+public final class FrameProtocol {
+    public static final String BINARY_HELLO = "#PROTOCOL binary";
+    public static final String BINARY_ACCEPT = "#PROTOCOL binary ok";
+    public static final String BINARY_HELLO_DEFLATE = "#PROTOCOL binary deflate";
+    public static final String BINARY_ACCEPT_DEFLATE = "#PROTOCOL binary ok deflate";
+    // Heartbeat: the server sends PING as a line (MESSAGE frame) and the client answers PONG as a line
+    // (COMMAND frame); any traffic counts as a sign of life, so busy clients are never pinged
+    public static final String PING = "#PING";
+    public static final String PONG = "#PONG";
+
+    public static final int HEADER_LENGTH = 5;
+    public static final int MAX_PAYLOAD = Integer.getInteger("chat.frame.maxPayload", 1 << 20);
+
+    // Text mode line; the server classifies it by content as before
+    public static final byte TEXT = 0x00;
+
+    // Client to server
+    public static final byte HELLO = 0x01;    // username
+    public static final byte CHAT = 0x02;     // chat text, relayed without being decoded
+    public static final byte COMMAND = 0x03;  // busy, available, SIGNUP ..., LOGIN ...
+
+    // Server to client
+    public static final byte MESSAGE = 0x10;   // a complete line to display
+    public static final byte CHAT_FROM = 0x11; // [sender length:2][sender][chat text]
+    public static final byte DIGEST = 0x12;    // MESSAGE and CHAT_FROM frames held while the client was busy
+
+    // Either direction, once deflate is negotiated: a whole frame, compressed
+    public static final byte DEFLATED = 0x13;
+    // Server to client, once deflate is negotiated: a whole frame, as the next piece of the
+    // connection's deflate stream
+    public static final byte DEFLATED_STREAM = 0x14;
+
+    private FrameProtocol() {
+    }
+
+    public static boolean isBinaryHello(String line) {
+        return BINARY_HELLO.equals(line) || BINARY_HELLO_DEFLATE.equals(line);
+    }
+
+    // True if the hello asks for compression and this server allows it
+    public static boolean acceptsDeflate(String hello) {
+        return FrameCompression.ENABLED && BINARY_HELLO_DEFLATE.equals(hello);
+    }
+
+    public static String binaryAccept(boolean deflate) {
+        return deflate ? BINARY_ACCEPT_DEFLATE : BINARY_ACCEPT;
+    }
+
+    // Answers a client's binary hello; written directly because the writer task is not running yet
+    public static void acceptBinary(Socket socket, boolean deflate) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write((binaryAccept(deflate) + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    // Tells a client why it is being dropped, before its connection and writer task exist
+    public static void refuse(Socket socket, String reason, boolean binary) throws IOException {
+        ByteBuffer frame = MessageFrame.of(reason).buffer(binary);
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        OutputStream out = socket.getOutputStream();
+        out.write(bytes);
+        out.flush();
+    }
+}
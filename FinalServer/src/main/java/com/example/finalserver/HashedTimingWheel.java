@@ -0,0 +1,154 @@
+package com.example.finalserver;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Timer for large numbers of coarse deadlines, such as one per connection. Deadlines are hashed
+ * into a ring of buckets by tick; scheduling and cancelling are O(1) whatever the number of
+ * timers, and each tick only visits one bucket. Deadlines are rounded up to the next tick.
+ * <p>
+ * Tasks run on the wheel's single thread, so they must be short: close a socket or hand work to
+ * another thread, never block.
+ */
+public class HashedTimingWheel {
+    private final long tickNanos;
+    private final Bucket[] buckets;
+    private final int mask;
+    // New timers are handed to the wheel thread here, so scheduling never takes a lock
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final long startNanos = System.nanoTime();
+    private final Thread thread;
+    private volatile boolean running = true;
+    // Only touched by the wheel thread
+    private long tick;
+
+    public HashedTimingWheel(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        tickNanos = Math.max(1, unit.toNanos(tickDuration));
+        // A power of two, so the bucket index is a mask rather than a division
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        buckets = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new Bucket();
+        }
+        mask = size - 1;
+        thread = ClientExecutors.namedThreads(name).newThread(this::run);
+        thread.start();
+    }
+
+    // Runs the task on the wheel thread once the delay has passed, unless cancelled first
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startNanos + Math.max(0, unit.toNanos(delay)));
+        pending.add(timeout);
+        return timeout;
+    }
+
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    private void run() {
+        while (running) {
+            long wakeAt = startNanos + (tick + 1) * tickNanos;
+            long sleep;
+            while (running && (sleep = wakeAt - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, sleep);
+            }
+            addPending();
+            buckets[(int) (tick & mask)].expire(tick);
+            tick++;
+        }
+    }
+
+    private void addPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            // Overdue timers go in the current bucket and fire on this tick
+            long due = Math.max(tick, (timeout.deadlineNanos + tickNanos - 1) / tickNanos);
+            timeout.dueTick = due;
+            buckets[(int) (due & mask)].add(timeout);
+        }
+    }
+
+    /** Handle for one scheduled task. */
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadlineNanos;
+        private volatile boolean cancelled;
+        // Bucket links and due tick, only touched by the wheel thread
+        private long dueTick;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        // The task will not run; the wheel drops the timer the next time it visits its bucket
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    // Doubly linked, so a timer leaves its bucket in O(1) wherever it is in the list
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.previous = tail;
+            timeout.next = null;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        // Runs the timers due on this tick; those due a lap or more later stay
+        void expire(long tick) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.cancelled) {
+                    remove(timeout);
+                } else if (timeout.dueTick <= tick) {
+                    remove(timeout);
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("Error in timer task: " + e);
+                    }
+                }
+                timeout = next;
+            }
+        }
+
+        private void remove(Timeout timeout) {
+            if (timeout.previous != null) {
+                timeout.previous.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.previous = timeout.previous;
+            } else {
+                tail = timeout.previous;
+            }
+            timeout.previous = null;
+            timeout.next = null;
+        }
+    }
+}
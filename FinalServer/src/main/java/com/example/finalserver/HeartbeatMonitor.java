@@ -0,0 +1,111 @@
+package com.example.finalserver;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Liveness checks for every connection of a server, driven by one {@link HashedTimingWheel}.
+ * A connection that has sent nothing for {@code chat.idle.pingMillis} is sent
+ * {@link FrameProtocol#PING}; one that stays silent for {@code chat.idle.timeoutMillis} is
+ * expired, which catches half-open sockets whose reader would otherwise block forever.
+ * <p>
+ * Receiving only stamps a time; the wheel looks at it when the connection's timer fires and
+ * re-arms the timer for whatever is left, so traffic never reschedules anything.
+ */
+public class HeartbeatMonitor {
+    public static final long PING_MILLIS = Long.getLong("chat.idle.pingMillis", 30_000);
+    // 0 disables heartbeats and idle timeouts
+    public static final long TIMEOUT_MILLIS = Long.getLong("chat.idle.timeoutMillis", 90_000);
+    public static final long TICK_MILLIS = Long.getLong("chat.idle.tickMillis", 100);
+    private static final int WHEEL_SIZE = 512;
+
+    private final HashedTimingWheel wheel;
+    private final long pingNanos;
+    private final long timeoutNanos;
+
+    public HeartbeatMonitor(long pingMillis, long timeoutMillis, long tickMillis) {
+        this.pingNanos = TimeUnit.MILLISECONDS.toNanos(pingMillis);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        wheel = new HashedTimingWheel("heartbeat", tickMillis, TimeUnit.MILLISECONDS, WHEEL_SIZE);
+    }
+
+    public static HeartbeatMonitor openDefault() {
+        if (TIMEOUT_MILLIS <= 0) {
+            return null;
+        }
+        return new HeartbeatMonitor(PING_MILLIS, TIMEOUT_MILLIS, TICK_MILLIS);
+    }
+
+    // Starts watching a connection; ping and expire run on the wheel thread and must not block
+    public Watch watch(Runnable ping, Runnable expire) {
+        Watch watch = new Watch(ping, expire);
+        watch.arm(Math.min(pingNanos, timeoutNanos));
+        return watch;
+    }
+
+    // One-off task on the same wheel, e.g. a hard close if a graceful one takes too long
+    public HashedTimingWheel.Timeout schedule(Runnable task, long delayMillis) {
+        return wheel.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void close() {
+        wheel.stop();
+    }
+
+    /** Liveness state of one connection. */
+    public final class Watch {
+        private final Runnable ping;
+        private final Runnable expire;
+        private volatile long lastSeen = System.nanoTime();
+        private volatile HashedTimingWheel.Timeout timeout;
+        private volatile boolean cancelled;
+        // The lastSeen value a ping was last sent for, so each silence is pinged once
+        private long pingedFor;
+
+        private Watch(Runnable ping, Runnable expire) {
+            this.ping = ping;
+            this.expire = expire;
+        }
+
+        // Called for every message received, pongs included
+        public void touch() {
+            lastSeen = System.nanoTime();
+        }
+
+        // Stops watching, e.g. once the connection has closed for another reason
+        public void cancel() {
+            cancelled = true;
+            HashedTimingWheel.Timeout current = timeout;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        private void arm(long delayNanos) {
+            if (!cancelled) {
+                timeout = wheel.schedule(this::check, delayNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void check() {
+            if (cancelled) {
+                return;
+            }
+            long seen = lastSeen;
+            long idle = System.nanoTime() - seen;
+            if (idle >= timeoutNanos) {
+                cancelled = true;
+                expire.run();
+                return;
+            }
+            if (idle >= pingNanos) {
+                if (pingedFor != seen) {
+                    pingedFor = seen;
+                    ping.run();
+                }
+                arm(timeoutNanos - idle);
+            } else {
+                arm(Math.min(pingNanos, timeoutNanos) - idle);
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.finalserver;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Serves {@code REPLAY <sequence>} and {@code REPLAY SINCE <epoch millis>} from the journal, one
+ * page per request. A page ends with {@code REPLAY_MORE <sequence>} (ask again from there),
+ * {@code REPLAY_END <sequence>}, or {@code REPLAY_LATER <millis> <arguments>} when the server-wide
+ * page rate is used up, so a mass reconnect is spread out instead of read all at once.
+ * <p>
+ * {@code REPLAY TRACK} is answered with {@code REPLAY_JOURNAL <journal id> <last sequence>}; from
+ * then on the server follows every journaled frame it sends that client, replayed ones included,
+ * with {@code REPLAY_AT <sequence>}. A client that reconnects to the same journal asks for
+ * {@code REPLAY <last sequence it saw>}, which needs neither its own clock nor the server's.
+ */
+public class HistoryReplay {
+    public static final int PAGE_SIZE = Integer.getInteger("chat.replay.pageSize", 100);
+    public static final int PAGES_PER_SECOND = Integer.getInteger("chat.replay.pagesPerSecond", 50);
+    public static final String TRACK = "TRACK";
+    public static final String JOURNAL = "REPLAY_JOURNAL";
+    public static final String POSITION = "REPLAY_AT";
+
+    private final MessageJournal journal;
+    private final long pageIntervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, PAGES_PER_SECOND);
+    // When the next page may be read; allowed to run up to one second ahead as a burst
+    private final AtomicLong nextPageNanos = new AtomicLong(System.nanoTime());
+
+    public HistoryReplay(MessageJournal journal) {
+        this.journal = journal;
+    }
+
+    // Answers one REPLAY command (without the keyword) for a client subscribed to rooms
+    public void handle(String arguments, Collection<String> rooms, Consumer<MessageFrame> sink) {
+        if (journal == null) {
+            sink.accept(MessageFrame.of("REPLAY_UNAVAILABLE"));
+            return;
+        }
+        if (TRACK.equals(arguments)) {
+            // The caller has switched the connection to sending positions; this costs no page
+            sink.accept(MessageFrame.of(JOURNAL + " " + journal.id() + " " + journal.lastSequence()));
+            return;
+        }
+
+        long afterSequence = 0;
+        long sinceMillis = 0;
+        try {
+            if (arguments.startsWith("SINCE ")) {
+                sinceMillis = Long.parseLong(arguments.substring(6).trim());
+            } else {
+                afterSequence = Long.parseLong(arguments);
+            }
+        } catch (NumberFormatException e) {
+            sink.accept(MessageFrame.of("INVALID_COMMAND"));
+            return;
+        }
+
+        long waitNanos = reservePage();
+        if (waitNanos > 0) {
+            long waitMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+            sink.accept(MessageFrame.of("REPLAY_LATER " + waitMillis + " " + arguments));
+            return;
+        }
+
+        long examined = journal.read(afterSequence, sinceMillis, rooms, PAGE_SIZE, sink);
+        if (examined > afterSequence && examined < journal.lastSequence()) {
+            sink.accept(MessageFrame.of("REPLAY_MORE " + examined));
+        } else {
+            sink.accept(MessageFrame.of("REPLAY_END " + examined));
+        }
+    }
+
+    // Takes a slot from the page budget; returns 0, or how long to wait if none is free
+    private long reservePage() {
+        while (true) {
+            long now = System.nanoTime();
+            long next = nextPageNanos.get();
+            long start = Math.max(next, now - TimeUnit.SECONDS.toNanos(1));
+            if (start > now) {
+                return start - now;
+            }
+            if (nextPageNanos.compareAndSet(next, start + pageIntervalNanos)) {
+                return 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.finalserver;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One message read from a client, either a text line or a binary frame. Chat frames keep their
+ * raw UTF-8 payload so the server can route them without ever building a String.
+ */
+public final class InboundMessage {
+    private final byte opcode;
+    private byte[] payload;
+    private String text;
+
+    private InboundMessage(byte opcode, byte[] payload, String text) {
+        this.opcode = opcode;
+        this.payload = payload;
+        this.text = text;
+    }
+
+    public static InboundMessage line(String text) {
+        return new InboundMessage(FrameProtocol.TEXT, null, text);
+    }
+
+    public static InboundMessage frame(byte opcode, byte[] payload) {
+        return new InboundMessage(opcode, payload, null);
+    }
+
+    public byte opcode() {
+        return opcode;
+    }
+
+    public boolean isChat() {
+        return opcode == FrameProtocol.CHAT;
+    }
+
+    public byte[] payload() {
+        if (payload == null) {
+            payload = text.getBytes(StandardCharsets.UTF_8);
+        }
+        return payload;
+    }
+
+    public String text() {
+        if (text == null) {
+            text = new String(payload, StandardCharsets.UTF_8);
+        }
+        return text;
+    }
+
+    public int length() {
+        return payload != null ? payload.length : text.length();
+    }
+}
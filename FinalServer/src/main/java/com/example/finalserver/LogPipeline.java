@@ -0,0 +1,132 @@
+package com.example.finalserver;
+
+import javafx.animation.AnimationTimer;
+import javafx.scene.control.TextArea;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log lines from any thread, shown in a TextArea without flooding the FX event queue. Writers
+ * claim a slot in a fixed ring with one CAS; on each pulse the FX thread takes everything queued
+ * and makes a single append, then evicts the oldest lines past the visible limit. When the ring
+ * is full new lines are dropped and the count is logged instead.
+ */
+public class LogPipeline {
+    public static final int CAPACITY = Integer.getInteger("chat.log.capacity", 16384);
+    public static final int MAX_LINES = Integer.getInteger("chat.log.maxLines", 5000);
+
+    private final AtomicReferenceArray<String> slots;
+    private final int mask;
+    // Next slot to claim; advanced by writers
+    private final AtomicLong tail = new AtomicLong();
+    // Next slot to read; written only by the drainer
+    private volatile long head;
+    private final LongAdder dropped = new LongAdder();
+
+    private final TextArea logArea;
+    private final int maxLines;
+    private final RollingLogFile file;
+    // Lengths of the visible lines, newline included; FX thread only
+    private final ArrayDeque<Integer> lineLengths = new ArrayDeque<>();
+    private final AnimationTimer drainer;
+
+    public LogPipeline(TextArea logArea) {
+        this(logArea, CAPACITY, MAX_LINES, RollingLogFile.openDefault());
+    }
+
+    public LogPipeline(TextArea logArea, int capacity, int maxLines, RollingLogFile file) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.logArea = logArea;
+        this.maxLines = Math.max(1, maxLines);
+        this.file = file;
+        this.drainer = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                drain();
+            }
+        };
+    }
+
+    // Must be called on the FX thread
+    public void start() {
+        drainer.start();
+    }
+
+    public void stop() {
+        drainer.stop();
+        if (file != null) {
+            file.close();
+        }
+    }
+
+    // Safe from any thread; returns false if the line was dropped because the ring is full
+    public boolean log(String line) {
+        while (true) {
+            long claimed = tail.get();
+            if (claimed - head >= slots.length()) {
+                dropped.increment();
+                return false;
+            }
+            if (tail.compareAndSet(claimed, claimed + 1)) {
+                slots.setRelease((int) claimed & mask, line);
+                return true;
+            }
+        }
+    }
+
+    private void drain() {
+        List<String> lines = new ArrayList<>();
+        long next = head;
+        while (true) {
+            int index = (int) next & mask;
+            String line = slots.getAcquire(index);
+            if (line == null) {
+                // Empty, or claimed but not yet written; later lines wait for it to keep order
+                break;
+            }
+            slots.setRelease(index, null);
+            lines.add(line);
+            next++;
+        }
+        head = next;
+
+        long lost = dropped.sumThenReset();
+        if (lost > 0) {
+            lines.add("(" + lost + " log lines dropped)");
+        }
+        if (lines.isEmpty()) {
+            return;
+        }
+
+        if (file != null) {
+            StringBuilder all = new StringBuilder();
+            for (String line : lines) {
+                all.append(line).append('\n');
+            }
+            file.write(all.toString());
+        }
+
+        // Lines that would be evicted in the same pulse are never appended
+        int first = Math.max(0, lines.size() - maxLines);
+        StringBuilder visible = new StringBuilder();
+        for (int i = first; i < lines.size(); i++) {
+            String line = lines.get(i);
+            visible.append(line).append('\n');
+            lineLengths.add(line.length() + 1);
+        }
+        int evicted = 0;
+        while (lineLengths.size() > maxLines) {
+            evicted += lineLengths.poll();
+        }
+        if (evicted > 0) {
+            logArea.deleteText(0, Math.min(evicted, logArea.getLength()));
+        }
+        logArea.appendText(visible.toString());
+    }
+}
@@ -0,0 +1,238 @@
+package com.example.finalserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * An outbound message encoded to UTF-8 exactly once. The same frame is queued to every
+ * recipient of a broadcast; each writer reads its own duplicate of a shared read-only buffer,
+ * built lazily for whichever wire formats (text line or binary frame) the recipients use.
+ */
+public final class MessageFrame {
+    private static final byte[] SEPARATOR = ": ".getBytes(StandardCharsets.UTF_8);
+    // CHAT_FROM frames and journal records carry the sender's length in two bytes, and the
+    // journal reserves 0xffff for "no sender"; usernames are held far below this at login
+    static final int MAX_SENDER_BYTES = 0xfffe;
+
+    private final byte[] sender;
+    private final byte[] body;
+    // Set for a digest: the body is its header line and these frames follow it
+    private final List<MessageFrame> parts;
+    private volatile String text;
+    private volatile ByteBuffer line;
+    private volatile ByteBuffer binary;
+    private volatile ByteBuffer deflated;
+    // Journal sequence of this frame, set before it is delivered; 0 if it was not journaled
+    private volatile long sequence;
+    private volatile MessageFrame position;
+    // Most recipients the frame was broadcast to at once; 0 for a frame sent to one client
+    private volatile int fanOut;
+
+    private MessageFrame(byte[] sender, byte[] body, String text) {
+        this(sender, body, text, null);
+    }
+
+    private MessageFrame(byte[] sender, byte[] body, String text, List<MessageFrame> parts) {
+        this.sender = sender;
+        this.body = body;
+        this.text = text;
+        this.parts = parts;
+    }
+
+    // A line shown to the client as is
+    public static MessageFrame of(String text) {
+        return new MessageFrame(null, text.getBytes(StandardCharsets.UTF_8), text);
+    }
+
+    // A line relayed from already encoded bytes, without decoding them
+    public static MessageFrame relay(byte[] body) {
+        return new MessageFrame(null, body, null);
+    }
+
+    public static MessageFrame chat(String sender, String message) {
+        return new MessageFrame(sender.getBytes(StandardCharsets.UTF_8), message.getBytes(StandardCharsets.UTF_8), null);
+    }
+
+    // Chat text from a binary client; the payload is passed through untouched
+    public static MessageFrame chat(String sender, byte[] message) {
+        return new MessageFrame(sender.getBytes(StandardCharsets.UTF_8), message, null);
+    }
+
+    // A message restored from already encoded parts, e.g. from the journal
+    static MessageFrame encoded(byte[] sender, byte[] body) {
+        return new MessageFrame(sender, body, null);
+    }
+
+    // Several frames delivered together with a single write, after a header line
+    public static MessageFrame digest(String header, List<MessageFrame> frames) {
+        MessageFrame digest = new MessageFrame(null, header.getBytes(StandardCharsets.UTF_8), null, frames);
+        for (MessageFrame frame : frames) {
+            digest.recordedAs(frame.sequence);
+        }
+        return digest;
+    }
+
+    public String text() {
+        String result = text;
+        if (result == null) {
+            result = new String(body, StandardCharsets.UTF_8);
+            if (sender != null) {
+                result = new String(sender, StandardCharsets.UTF_8) + ": " + result;
+            }
+            if (parts != null) {
+                StringBuilder builder = new StringBuilder(result);
+                for (MessageFrame part : parts) {
+                    builder.append('\n').append(part.text());
+                }
+                result = builder.toString();
+            }
+            text = result;
+        }
+        return result;
+    }
+
+    // A frame that was journaled more than once keeps the highest sequence, so a replay from it repeats nothing
+    void recordedAs(long journalSequence) {
+        if (journalSequence > sequence) {
+            sequence = journalSequence;
+        }
+    }
+
+    // Called before a broadcast is delivered; wide broadcasts are compressed once and shared
+    public void setFanOut(int recipients) {
+        if (recipients > fanOut) {
+            fanOut = recipients;
+        }
+    }
+
+    public int fanOut() {
+        return fanOut;
+    }
+
+    public long sequence() {
+        return sequence;
+    }
+
+    // The line that follows this frame to clients tracking their replay position; null if not journaled
+    public MessageFrame positionFrame() {
+        MessageFrame result = position;
+        if (result == null && sequence > 0) {
+            result = MessageFrame.of(HistoryReplay.POSITION + " " + sequence);
+            position = result;
+        }
+        return result;
+    }
+
+    // The encoded parts, shared rather than copied; callers must not modify them
+    byte[] senderBytes() {
+        return sender;
+    }
+
+    byte[] bodyBytes() {
+        return body;
+    }
+
+    public ByteBuffer buffer(boolean binaryProtocol) {
+        return binaryProtocol ? binaryBuffer() : lineBuffer();
+    }
+
+    // Compression is only negotiated on binary connections
+    public ByteBuffer buffer(boolean binaryProtocol, boolean compressed) {
+        return compressed ? deflatedBuffer() : buffer(binaryProtocol);
+    }
+
+    // Newline terminated bytes for the text protocol; callers get an independent position
+    public ByteBuffer lineBuffer() {
+        ByteBuffer result = line;
+        if (result == null && parts != null) {
+            ByteBuffer header = MessageFrame.of(new String(body, StandardCharsets.UTF_8)).lineBuffer();
+            result = concat(-1, header, parts, false);
+            line = result;
+        } else if (result == null) {
+            int length = body.length + 1 + (sender != null ? sender.length + SEPARATOR.length : 0);
+            ByteBuffer encoded = ByteBuffer.allocate(length);
+            if (sender != null) {
+                encoded.put(sender).put(SEPARATOR);
+            }
+            // Text clients read line by line, so embedded line breaks become spaces
+            for (byte b : body) {
+                encoded.put(b == '\n' || b == '\r' ? (byte) ' ' : b);
+            }
+            encoded.put((byte) '\n').flip();
+            result = encoded.asReadOnlyBuffer();
+            line = result;
+        }
+        return result.duplicate();
+    }
+
+    // The same message as a FrameProtocol frame
+    public ByteBuffer binaryBuffer() {
+        ByteBuffer result = binary;
+        if (result == null && parts != null) {
+            ByteBuffer header = MessageFrame.of(new String(body, StandardCharsets.UTF_8)).binaryBuffer();
+            result = concat(FrameProtocol.DIGEST, header, parts, true);
+            binary = result;
+        } else if (result == null) {
+            int payloadLength = body.length + (sender != null ? 2 + sender.length : 0);
+            ByteBuffer encoded = ByteBuffer.allocate(FrameProtocol.HEADER_LENGTH + payloadLength);
+            if (sender != null) {
+                encoded.put(FrameProtocol.CHAT_FROM).putInt(payloadLength)
+                        .putShort((short) sender.length).put(sender);
+            } else {
+                encoded.put(FrameProtocol.MESSAGE).putInt(payloadLength);
+            }
+            encoded.put(body).flip();
+            result = encoded.asReadOnlyBuffer();
+            binary = result;
+        }
+        return result.duplicate();
+    }
+
+    // The binary frame compressed once for all recipients that negotiated deflate; small or
+    // incompressible frames are sent as they are
+    public ByteBuffer deflatedBuffer() {
+        ByteBuffer result = deflated;
+        if (result == null) {
+            ByteBuffer plain = binaryBuffer();
+            if (plain.remaining() >= FrameCompression.THRESHOLD) {
+                result = FrameCompression.deflate(plain);
+            }
+            if (result == null) {
+                result = plain;
+            }
+            deflated = result;
+        }
+        return result.duplicate();
+    }
+
+    public int size() {
+        int size = body.length + (sender != null ? sender.length + SEPARATOR.length : 0) + 1;
+        if (parts != null) {
+            for (MessageFrame part : parts) {
+                size += part.size();
+            }
+        }
+        return size;
+    }
+
+    // Joins the encoded header and parts; a non-negative opcode wraps them in one enclosing frame
+    private static ByteBuffer concat(int opcode, ByteBuffer header, List<MessageFrame> parts, boolean binaryProtocol) {
+        ByteBuffer[] buffers = new ByteBuffer[parts.size()];
+        int length = header.remaining();
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = parts.get(i).buffer(binaryProtocol);
+            length += buffers[i].remaining();
+        }
+        ByteBuffer encoded = ByteBuffer.allocate((opcode >= 0 ? FrameProtocol.HEADER_LENGTH : 0) + length);
+        if (opcode >= 0) {
+            encoded.put((byte) opcode).putInt(length);
+        }
+        encoded.put(header);
+        for (ByteBuffer buffer : buffers) {
+            encoded.put(buffer);
+        }
+        encoded.flip();
+        return encoded.asReadOnlyBuffer();
+    }
+}
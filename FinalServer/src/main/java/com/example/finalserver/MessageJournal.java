@@ -0,0 +1,591 @@
+package com.example.finalserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only history of broadcast messages in fixed-size segment files. Appends are copies
+ * into a memory-mapped segment; a background thread forces dirty pages to disk and applies
+ * retention, so the broadcast path never waits for the disk. The same thread maps the next
+ * segment ahead of time and forces each full one, so rolling over is only a rename.
+ * <p>
+ * Record: {@code [length:4][crc32:4][sequence:8][timestamp:8][rooms length:2][rooms]
+ * [sender length:2, 0xffff if none][sender][body]}, where length and crc cover everything after
+ * the crc. A broadcast to several rooms is one record whose rooms are separated by spaces, which
+ * room names never contain, so a replay covering more than one of them returns it once. A zero length marks the end of a segment's data. A sparse in-memory index of record
+ * positions by sequence and by time lets {@link #read} start close to where a replay begins.
+ * <p>
+ * A journal holds a lock file in its directory for as long as it is open, so two servers can
+ * never append to the same segments; {@link #openDefault} gives each server port its own
+ * directory under {@code chat.journal.dir}.
+ */
+public class MessageJournal implements Closeable {
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("chat.journal.enabled", "true"));
+    public static final String DIRECTORY = System.getProperty("chat.journal.dir", "chat-journal");
+    public static final int SEGMENT_BYTES = Integer.getInteger("chat.journal.segmentBytes", 64 << 20);
+    public static final long MAX_BYTES = Long.getLong("chat.journal.maxBytes", 1L << 30);
+    public static final long MAX_AGE_MILLIS = Long.getLong("chat.journal.maxAgeMillis", TimeUnit.DAYS.toMillis(7));
+    public static final long FORCE_INTERVAL_MILLIS = Long.getLong("chat.journal.forceMillis", 1000);
+    public static final int INDEX_INTERVAL = Integer.getInteger("chat.journal.indexInterval", 64);
+
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final String LOCK_FILE = "journal.lock";
+    static final String ID_FILE = "journal.id";
+    // The next segment, mapped before it is needed and renamed into place when the active one fills
+    static final String SPARE_FILE = "next-segment.tmp";
+    static final int RECORD_HEADER = 8;
+    private static final int MIN_RECORD_LENGTH = 8 + 8 + 2 + 2;
+    private static final int NO_SENDER = 0xffff;
+    private static final int MAX_ROOM_BYTES = 0xffff;
+    // A read gives up after scanning this many records per requested one, e.g. for a quiet room
+    private static final int SCAN_FACTOR = 16;
+
+    private final Path directory;
+    private final String id;
+    private final int segmentBytes;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final FileChannel lockChannel;
+    private final ScheduledExecutorService maintenance;
+
+    // Sparse index: the first record of every segment and every INDEX_INTERVAL-th record after it
+    private final ConcurrentSkipListMap<Long, IndexEntry> bySequence = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<Long, IndexEntry> byTime = new ConcurrentSkipListMap<>();
+    // Read-only mappings shared by every reader, keyed by the segment's first sequence
+    private final Map<Long, MappedByteBuffer> readers = new ConcurrentHashMap<>();
+    // Segments past retention whose file could not be deleted yet; only touched by maintenance
+    private final Set<Long> retired = new HashSet<>();
+
+    // Guarded by this
+    private long activeFirst;
+    private MappedByteBuffer active;
+    // Mapped SPARE_FILE, or null until the maintenance thread has prepared it
+    private MappedByteBuffer spare;
+    private long nextSequence = 1;
+    private long lastIndexedTime;
+    private boolean dirty;
+    private boolean closed;
+
+    public MessageJournal(Path directory, int segmentBytes, long maxBytes, long maxAgeMillis, long forceIntervalMillis)
+            throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        Files.createDirectories(directory);
+        lockChannel = lock(directory);
+        try {
+            id = readId(directory);
+            recover();
+        } catch (IOException e) {
+            lockChannel.close();
+            throw e;
+        }
+
+        maintenance = Executors.newSingleThreadScheduledExecutor(ClientExecutors.namedThreads("journal-maintenance"));
+        maintenance.scheduleWithFixedDelay(this::maintain, forceIntervalMillis, forceIntervalMillis, TimeUnit.MILLISECONDS);
+        maintenance.execute(this::prepareSpare);
+    }
+
+    // The configured journal of the server on the given port, or null if it is disabled or cannot be opened
+    public static MessageJournal openDefault(int port) {
+        if (!ENABLED) {
+            return null;
+        }
+        try {
+            return new MessageJournal(Paths.get(DIRECTORY, String.valueOf(port)), SEGMENT_BYTES, MAX_BYTES, MAX_AGE_MILLIS, FORCE_INTERVAL_MILLIS);
+        } catch (IOException e) {
+            System.err.println("Message journal disabled: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Records a broadcast and stamps the frame with it; returns its sequence number, or -1 if it was not recorded
+    public long append(String room, MessageFrame frame) {
+        return append(room.getBytes(StandardCharsets.UTF_8), frame);
+    }
+
+    // Records a broadcast delivered once to everyone in any of the rooms
+    public long append(Collection<String> rooms, MessageFrame frame) {
+        return append(String.join(" ", rooms).getBytes(StandardCharsets.UTF_8), frame);
+    }
+
+    private long append(byte[] roomBytes, MessageFrame frame) {
+        byte[] sender = frame.senderBytes();
+        byte[] body = frame.bodyBytes();
+        int length = MIN_RECORD_LENGTH + roomBytes.length + (sender != null ? sender.length : 0) + body.length;
+        if (RECORD_HEADER + length + 4 > segmentBytes) {
+            return -1;
+        }
+        // Both lengths are stored in two bytes; a longer one would be misread on recovery and replay
+        if (roomBytes.length > MAX_ROOM_BYTES || (sender != null && sender.length > MessageFrame.MAX_SENDER_BYTES)) {
+            return -1;
+        }
+
+        synchronized (this) {
+            if (closed) {
+                return -1;
+            }
+            try {
+                // Keep room for the zero length that ends the segment
+                if (active.remaining() < RECORD_HEADER + length + 4) {
+                    roll();
+                }
+            } catch (IOException e) {
+                System.err.println("Error rolling message journal: " + e.getMessage());
+                return -1;
+            }
+
+            long sequence = nextSequence++;
+            long timestamp = System.currentTimeMillis();
+            int start = active.position();
+            active.position(start + RECORD_HEADER);
+            active.putLong(sequence).putLong(timestamp);
+            active.putShort((short) roomBytes.length).put(roomBytes);
+            if (sender != null) {
+                active.putShort((short) sender.length).put(sender);
+            } else {
+                active.putShort((short) NO_SENDER);
+            }
+            active.put(body);
+
+            CRC32 crc = new CRC32();
+            crc.update(active.duplicate().position(start + RECORD_HEADER).limit(start + RECORD_HEADER + length));
+            active.putInt(start + 4, (int) crc.getValue());
+            // The length goes in last so a torn record never looks complete
+            active.putInt(start, length);
+            index(activeFirst, sequence, timestamp, start);
+            dirty = true;
+            frame.recordedAs(sequence);
+            return sequence;
+        }
+    }
+
+    // Sequences only mean something to the journal that issued them; another node's journal, or a
+    // new one after the directory was cleared, has a different id
+    public String id() {
+        return id;
+    }
+
+    public synchronized long lastSequence() {
+        return nextSequence - 1;
+    }
+
+    /**
+     * Passes up to {@code limit} records after {@code afterSequence}, no older than
+     * {@code sinceMillis} and in one of {@code rooms}, to {@code sink} as frames. Returns the
+     * last sequence examined, from which the next page continues; that equals
+     * {@link #lastSequence()} once everything has been read.
+     */
+    public long read(long afterSequence, long sinceMillis, Collection<String> rooms, int limit, Consumer<MessageFrame> sink) {
+        long last = lastSequence();
+        if (afterSequence >= last) {
+            return afterSequence;
+        }
+        // Room names are encoded once per page and compared against the mapped bytes
+        String[] roomNames = rooms.toArray(new String[0]);
+        byte[][] roomKeys = new byte[roomNames.length][];
+        for (int i = 0; i < roomNames.length; i++) {
+            roomKeys[i] = roomNames[i].getBytes(StandardCharsets.UTF_8);
+        }
+
+        IndexEntry entry = startingPoint(afterSequence, sinceMillis);
+        if (entry == null) {
+            return afterSequence;
+        }
+        long segment = entry.segment;
+        ByteBuffer buffer = reader(segment);
+        int position = entry.position;
+        long sequence = entry.sequence;
+        long examined = afterSequence;
+        int delivered = 0;
+        int scanned = 0;
+        while (buffer != null && sequence <= last && delivered < limit && scanned < limit * SCAN_FACTOR) {
+            int length = recordLength(buffer, position, sequence);
+            if (length < 0) {
+                // Records continue in the segment named after the next sequence
+                segment = sequence;
+                buffer = reader(segment);
+                position = 0;
+                continue;
+            }
+            if (sequence > afterSequence) {
+                scanned++;
+                examined = sequence;
+                if (buffer.getLong(position + RECORD_HEADER + 8) >= sinceMillis && inRooms(buffer, position, roomKeys)) {
+                    MessageFrame frame = toFrame(buffer, position, length);
+                    frame.recordedAs(sequence);
+                    sink.accept(frame);
+                    delivered++;
+                }
+            }
+            position += RECORD_HEADER + length;
+            sequence++;
+        }
+        return examined;
+    }
+
+    @Override
+    public void close() {
+        maintenance.shutdown();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            active.force();
+            spare = null;
+        }
+        try {
+            Files.deleteIfExists(directory.resolve(SPARE_FILE));
+        } catch (IOException e) {
+            // Replaced by a fresh one on the next open
+        }
+        try {
+            // Also releases the lock
+            lockChannel.close();
+        } catch (IOException e) {
+            System.err.println("Error unlocking message journal: " + e.getMessage());
+        }
+    }
+
+    private static String readId(Path directory) throws IOException {
+        Path file = directory.resolve(ID_FILE);
+        if (Files.exists(file)) {
+            return Files.readString(file, StandardCharsets.UTF_8).trim();
+        }
+        String created = UUID.randomUUID().toString();
+        Files.writeString(file, created, StandardCharsets.UTF_8);
+        return created;
+    }
+
+    private static FileChannel lock(Path directory) throws IOException {
+        FileChannel channel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Already open in this JVM
+            lock = null;
+        }
+        if (lock == null) {
+            channel.close();
+            throw new IOException(directory + " is in use by another server");
+        }
+        return channel;
+    }
+
+    // Indexes every segment and reopens the newest at the end of its last intact record
+    private void recover() throws IOException {
+        List<Path> segments = segments();
+        if (segments.isEmpty()) {
+            openSegment(1);
+            return;
+        }
+        for (int i = 0; i < segments.size() - 1; i++) {
+            long first = firstSequence(segments.get(i));
+            scan(first, reader(first).duplicate());
+        }
+
+        activeFirst = firstSequence(segments.get(segments.size() - 1));
+        active = map(segmentPath(activeFirst), FileChannel.MapMode.READ_WRITE);
+        nextSequence = scan(activeFirst, active);
+        if (nextSequence > activeFirst) {
+            System.out.println("Message journal recovered up to sequence " + (nextSequence - 1));
+        }
+        // Clear whatever is left of a torn record so the segment ends at a zero length
+        if (active.remaining() >= 4) {
+            active.putInt(active.position(), 0);
+        }
+    }
+
+    // Indexes a segment's intact records; returns the sequence after the last one and leaves the buffer there
+    private long scan(long first, ByteBuffer buffer) {
+        long sequence = first;
+        int position = 0;
+        int length;
+        while ((length = recordLength(buffer, position, sequence)) >= 0) {
+            index(first, sequence, buffer.getLong(position + RECORD_HEADER + 8), position);
+            position += RECORD_HEADER + length;
+            sequence++;
+        }
+        buffer.position(position);
+        return sequence;
+    }
+
+    private void index(long segment, long sequence, long timestamp, int position) {
+        if (position != 0 && (sequence - segment) % INDEX_INTERVAL != 0) {
+            return;
+        }
+        IndexEntry entry = new IndexEntry(segment, sequence, position);
+        bySequence.put(sequence, entry);
+        // Keyed by the highest time seen so far, so a clock step back cannot reorder the index
+        lastIndexedTime = Math.max(lastIndexedTime, timestamp);
+        byTime.putIfAbsent(lastIndexedTime, entry);
+    }
+
+    // The latest indexed record that is certainly not past the start of the requested range
+    private IndexEntry startingPoint(long afterSequence, long sinceMillis) {
+        Map.Entry<Long, IndexEntry> bySeq = bySequence.floorEntry(afterSequence + 1);
+        Map.Entry<Long, IndexEntry> byTs = sinceMillis > 0 ? byTime.lowerEntry(sinceMillis) : null;
+        IndexEntry result = bySeq != null ? bySeq.getValue() : null;
+        if (byTs != null && (result == null || byTs.getValue().sequence > result.sequence)) {
+            result = byTs.getValue();
+        }
+        if (result == null) {
+            Map.Entry<Long, IndexEntry> first = bySequence.firstEntry();
+            result = first != null ? first.getValue() : null;
+        }
+        return result;
+    }
+
+    // Length of the intact record with the expected sequence at position, or -1
+    private static int recordLength(ByteBuffer buffer, int position, long expectedSequence) {
+        if (buffer.limit() - position < RECORD_HEADER) {
+            return -1;
+        }
+        int length = buffer.getInt(position);
+        if (length < MIN_RECORD_LENGTH || length > buffer.limit() - position - RECORD_HEADER) {
+            return -1;
+        }
+        if (buffer.getLong(position + RECORD_HEADER) != expectedSequence) {
+            return -1;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate().position(position + RECORD_HEADER).limit(position + RECORD_HEADER + length));
+        return (int) crc.getValue() == buffer.getInt(position + 4) ? length : -1;
+    }
+
+    private static boolean inRooms(ByteBuffer buffer, int position, byte[][] roomKeys) {
+        int roomOffset = position + RECORD_HEADER + 16;
+        int end = roomOffset + 2 + (buffer.getShort(roomOffset) & 0xffff);
+        // Each space separated name in the field is compared in place
+        int start = roomOffset + 2;
+        while (start <= end) {
+            int stop = start;
+            while (stop < end && buffer.get(stop) != ' ') {
+                stop++;
+            }
+            for (byte[] key : roomKeys) {
+                if (key.length == stop - start && regionEquals(buffer, start, key)) {
+                    return true;
+                }
+            }
+            start = stop + 1;
+        }
+        return false;
+    }
+
+    private static boolean regionEquals(ByteBuffer buffer, int offset, byte[] key) {
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(offset + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Copies the sender and body out of the mapping; nothing is decoded
+    private static MessageFrame toFrame(ByteBuffer buffer, int position, int length) {
+        int offset = position + RECORD_HEADER + 16;
+        offset += 2 + (buffer.getShort(offset) & 0xffff);
+        int senderLength = buffer.getShort(offset) & 0xffff;
+        offset += 2;
+        byte[] sender = null;
+        if (senderLength != NO_SENDER) {
+            sender = new byte[senderLength];
+            buffer.get(offset, sender);
+            offset += senderLength;
+        }
+        byte[] body = new byte[position + RECORD_HEADER + length - offset];
+        buffer.get(offset, body);
+        return MessageFrame.encoded(sender, body);
+    }
+
+    private ByteBuffer reader(long segment) {
+        MappedByteBuffer buffer = readers.computeIfAbsent(segment, first -> {
+            Path path = segmentPath(first);
+            if (!Files.exists(path)) {
+                return null;
+            }
+            try {
+                return map(path, FileChannel.MapMode.READ_ONLY);
+            } catch (IOException e) {
+                System.err.println("Error mapping journal segment " + path + ": " + e.getMessage());
+                return null;
+            }
+        });
+        // Absolute reads only, but each reader gets its own view anyway
+        return buffer != null ? buffer.duplicate() : null;
+    }
+
+    // Called holding the lock, so it leaves the disk writes to the maintenance thread
+    private void roll() throws IOException {
+        active.putInt(active.position(), 0);
+        MappedByteBuffer full = active;
+        MappedByteBuffer next = spare;
+        spare = null;
+        if (next != null) {
+            // The mapping follows the file through the rename
+            Files.move(directory.resolve(SPARE_FILE), segmentPath(nextSequence), StandardCopyOption.ATOMIC_MOVE);
+            activeFirst = nextSequence;
+            active = next;
+        } else {
+            // Filled faster than the spare could be mapped
+            openSegment(nextSequence);
+        }
+        try {
+            maintenance.execute(() -> {
+                full.force();
+                prepareSpare();
+            });
+        } catch (RejectedExecutionException e) {
+            // Closing; nothing else will force it
+            full.force();
+        }
+    }
+
+    // Runs on the maintenance thread: maps an empty file to roll over into
+    private void prepareSpare() {
+        synchronized (this) {
+            if (closed || spare != null) {
+                return;
+            }
+        }
+        Path path = directory.resolve(SPARE_FILE);
+        try {
+            // Left over from a previous run, or written to since; start from zeros
+            Files.deleteIfExists(path);
+            MappedByteBuffer mapped = map(path, FileChannel.MapMode.READ_WRITE);
+            synchronized (this) {
+                if (!closed) {
+                    spare = mapped;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error preparing the next journal segment: " + e.getMessage());
+        }
+    }
+
+    private void openSegment(long firstSequence) throws IOException {
+        activeFirst = firstSequence;
+        active = map(segmentPath(firstSequence), FileChannel.MapMode.READ_WRITE);
+    }
+
+    private Path segmentPath(long firstSequence) {
+        return directory.resolve(String.format("%020d%s", firstSequence, SEGMENT_SUFFIX));
+    }
+
+    private MappedByteBuffer map(Path path, FileChannel.MapMode mode) throws IOException {
+        try (FileChannel channel = mode == FileChannel.MapMode.READ_ONLY ? FileChannel.open(path, StandardOpenOption.READ)
+                : FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            return channel.map(mode, 0, segmentBytes);
+        }
+    }
+
+    // Segment files, oldest first
+    List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> result = new ArrayList<>();
+            files.filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().forEach(result::add);
+            return result;
+        }
+    }
+
+    static long firstSequence(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    // Runs on the maintenance thread: flushes dirty pages, then drops segments past retention
+    private void maintain() {
+        MappedByteBuffer toForce = null;
+        long current;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (dirty) {
+                toForce = active;
+                dirty = false;
+            }
+            current = activeFirst;
+        }
+        if (toForce != null) {
+            // A concurrent append only touches pages that the next run will force again
+            toForce.force();
+        }
+
+        try {
+            List<Path> segments = segments();
+            long total = (long) segments.size() * segmentBytes;
+            long cutoff = System.currentTimeMillis() - maxAgeMillis;
+            for (Path segment : segments) {
+                long first = firstSequence(segment);
+                if (first == current) {
+                    break;
+                }
+                if (!retired.contains(first) && total <= maxBytes && Files.getLastModifiedTime(segment).toMillis() >= cutoff) {
+                    break;
+                }
+                total -= segmentBytes;
+                if (retired.add(first)) {
+                    // Unindex and drop the mapping first so new reads start at the next segment
+                    bySequence.values().removeIf(entry -> entry.segment == first);
+                    byTime.values().removeIf(entry -> entry.segment == first);
+                    readers.remove(first);
+                }
+                try {
+                    Files.deleteIfExists(segment);
+                    retired.remove(first);
+                } catch (IOException e) {
+                    // Windows refuses to delete a file that is still mapped, and a mapping only
+                    // goes away once the buffers of readers still holding it are collected
+                    System.err.println("Journal segment " + segment + " not deleted yet, will retry: " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error applying journal retention: " + e.getMessage());
+        }
+    }
+
+    private static final class IndexEntry {
+        private final long segment;
+        private final long sequence;
+        private final int position;
+
+        IndexEntry(long segment, long sequence, int position) {
+            this.segment = segment;
+            this.sequence = sequence;
+            this.position = position;
+        }
+    }
+}
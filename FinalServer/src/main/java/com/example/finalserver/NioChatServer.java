@@ -0,0 +1,935 @@
+package com.example.finalserver;
+
+import com.example.finalserver.ServerMetrics.DisconnectReason;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Selector based variant of {@link ChatServer}. A single acceptor hands new sockets
+ * round-robin to a small, fixed set of event loops, each of which owns its connections.
+ * With {@code chat.nio.coalesceWrites} a connection's frames are not written as they are queued
+ * but once per loop iteration, so a burst of broadcasts reaches each client in one write.
+ * <p>
+ * With {@code chat.nio.reusePort} there is no acceptor thread: every event loop binds its own
+ * listening socket to the port with SO_REUSEPORT and the kernel spreads new connections across
+ * them. Either way each loop is a shard that owns its connections, read buffer and room
+ * memberships, so reads never touch another loop's state; a broadcast reaches the other shards as
+ * a task in their queues.
+ */
+public class NioChatServer {
+    private static final int SERVER_PORT = Integer.getInteger("chat.port", 5570);
+    private static final int EVENT_LOOPS = Integer.getInteger("chat.nio.eventLoops",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int MAX_LINE_LENGTH = Integer.getInteger("chat.nio.maxLineLength", 8192);
+    private static final int MAX_PENDING_BYTES = Integer.getInteger("chat.nio.maxPendingBytes", 1 << 20);
+    private static final long HIGH_WATER_BYTES = SlowConsumerPolicy.highWater(MAX_PENDING_BYTES);
+    private static final SlowConsumerPolicy SLOW_CONSUMER_POLICY = SlowConsumerPolicy.CONFIGURED;
+    private static final MessageFrame PING = MessageFrame.of(FrameProtocol.PING);
+    private static final boolean COALESCE_WRITES = Boolean.getBoolean("chat.nio.coalesceWrites");
+    private static final boolean REUSE_PORT = Boolean.getBoolean("chat.nio.reusePort");
+    private static final int ACCEPT_BACKLOG = 1024;
+
+    private ServerSocketChannel serverChannel;
+    private EventLoop[] eventLoops;
+    private ClientRegistry<Connection> connectedClients;
+    // History of room broadcasts; null if journaling is disabled
+    private MessageJournal journal;
+    private HistoryReplay replay;
+    // Appends to the journal for every event loop; null if journaling is disabled
+    private JournalWriter journalWriter;
+    // Journal pages may fault in from disk, so they are read off the event loops
+    private ExecutorService replayExecutor;
+    private ServerMetrics metrics;
+    // Pings quiet clients and expires silent ones; null if idle timeouts are disabled
+    private HeartbeatMonitor heartbeats;
+    // Link to the other nodes; null unless clustering is configured
+    private ClusterNode cluster;
+
+    public NioChatServer() {
+        connectedClients = new ClientRegistry<>();
+        journal = MessageJournal.openDefault(SERVER_PORT);
+        replay = new HistoryReplay(journal);
+        if (journal != null) {
+            journalWriter = new JournalWriter();
+        }
+        replayExecutor = Executors.newSingleThreadExecutor(ClientExecutors.namedThreads("nio-replay"));
+        metrics = ServerMetrics.register("NioChatServer");
+        heartbeats = HeartbeatMonitor.openDefault();
+        // pendingBytes is owned by the event loops; a slightly stale read is fine for a gauge
+        metrics.setQueueDepthSource(connectedClients.clients(), connection -> connection.pendingBytes);
+    }
+
+    public void start() {
+        try {
+            boolean reusePort = REUSE_PORT && supportsReusePort();
+            eventLoops = new EventLoop[EVENT_LOOPS];
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new EventLoop(i);
+                if (reusePort) {
+                    eventLoops[i].listen(SERVER_PORT);
+                }
+                eventLoops[i].start();
+            }
+            // Remote broadcasts are handed straight to the event loops, so they must exist first
+            cluster = ClusterNode.startDefault(new ClusterNode.Listener() {
+                @Override
+                public void onBroadcast(Set<String> roomNames, MessageFrame frame) {
+                    deliverLocally(roomNames, frame);
+                }
+
+                @Override
+                public void onPresence(String username, boolean online, String node) {
+                    System.out.println("Remote client " + (online ? "connected: " : "disconnected: ") + username + " on " + node);
+                }
+
+                @Override
+                public Collection<String> localUsers() {
+                    return connectedClients.usernames();
+                }
+            });
+
+            if (reusePort) {
+                System.out.println("Server started on port " + SERVER_PORT + " with " + EVENT_LOOPS
+                        + " event loops, each accepting on its own socket");
+                for (EventLoop eventLoop : eventLoops) {
+                    eventLoop.thread.join();
+                }
+                return;
+            }
+            if (REUSE_PORT) {
+                System.err.println("SO_REUSEPORT is not supported here; using a single acceptor");
+            }
+
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(SERVER_PORT), ACCEPT_BACKLOG);
+            System.out.println("Server started on port " + SERVER_PORT + " with " + EVENT_LOOPS + " event loops");
+
+            // Accept in blocking mode and hand each connection to the next event loop
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                metrics.accepted();
+                eventLoops[next].register(channel);
+                next = (next + 1) % eventLoops.length;
+            }
+        } catch (IOException e) {
+            System.err.println("Error in server: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (serverChannel != null && serverChannel.isOpen()) {
+                try {
+                    serverChannel.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+            replayExecutor.shutdown();
+            if (heartbeats != null) {
+                heartbeats.close();
+            }
+            if (cluster != null) {
+                cluster.close();
+            }
+            if (journalWriter != null) {
+                journalWriter.stop();
+            }
+            if (journal != null) {
+                journal.close();
+            }
+            if (eventLoops != null) {
+                for (EventLoop eventLoop : eventLoops) {
+                    if (eventLoop != null) {
+                        eventLoop.shutdown();
+                    }
+                }
+            }
+        }
+    }
+
+    private void onMessage(Connection connection, InboundMessage message) {
+        metrics.messageIn();
+        if (connection.watch != null) {
+            connection.watch.touch();
+        }
+        if (connection.username == null) {
+            String first = message.text();
+            if (!connection.binary && FrameProtocol.isBinaryHello(first)) {
+                // Answer in text, then read and write frames from here on
+                connection.compressed = FrameProtocol.acceptsDeflate(first);
+                connection.write(MessageFrame.of(FrameProtocol.binaryAccept(connection.compressed)).lineBuffer());
+                connection.binary = true;
+                if (connection.compressed) {
+                    connection.decoder = new FrameCompression.Decoder();
+                    // Dropping the oldest queued frames could cut pieces out of a stream, so under that
+                    // policy every compressed frame stands alone
+                    if (SLOW_CONSUMER_POLICY != SlowConsumerPolicy.DROP_OLDEST) {
+                        connection.encoder = new FrameCompression.Encoder();
+                    }
+                }
+                return;
+            }
+
+            // The first line (or hello frame) from the client is its username
+            if (!ClientRegistry.isValidUsername(first)) {
+                connection.refuse(MessageFrame.of(ClientRegistry.INVALID_USERNAME));
+                return;
+            }
+            connection.username = first;
+            System.out.println("Client connected: " + first);
+            // A stale connection with the same name is closed on its own loop, like ChatServer does
+            Connection previous = connectedClients.add(first, connection);
+            if (previous != null) {
+                previous.eventLoop.execute(() -> previous.close(DisconnectReason.REPLACED));
+            }
+            connection.eventLoop.rooms.join(connection, RoomIndex.DEFAULT_ROOM);
+            if (cluster != null) {
+                cluster.publishPresence(first, true);
+            }
+            connection.send(MessageFrame.of("Welcome to the chat room, " + first + "!"));
+            return;
+        }
+
+        if (message.isChat()) {
+            // Binary chat frames are relayed as raw bytes, never decoded
+            System.out.println("Message from " + connection.username + ": " + message.length() + " bytes");
+            String room = connection.eventLoop.rooms.activeRoom(connection);
+            if (room != null) {
+                broadcastMessage(room, MessageFrame.chat(RoomIndex.senderLabel(connection.username, room), message.payload()));
+            }
+            return;
+        }
+
+        String line = message.text();
+        if (FrameProtocol.PONG.equals(line)) {
+            return;
+        }
+        System.out.println("Message from " + connection.username + ": " + line);
+
+        // Check if the client wants to change their availability
+        if (line.equalsIgnoreCase("busy")) {
+            connectedClients.setBusy(connection.username, true);
+            if (connection.deferred == null) {
+                connection.deferred = new DigestQueue();
+            }
+        } else if (line.equalsIgnoreCase("available")) {
+            connectedClients.setBusy(connection.username, false);
+            // Everything held while busy goes out as one digest, in a single write
+            if (connection.deferred != null) {
+                MessageFrame digest = connection.deferred.toDigest();
+                connection.deferred = null;
+                if (digest != null) {
+                    connection.send(digest);
+                }
+            }
+        } else if (line.startsWith("JOIN ")) {
+            joinRoom(connection, line.substring(5).trim());
+        } else if (line.startsWith("LEAVE ")) {
+            leaveRoom(connection, line.substring(6).trim());
+        } else if (line.startsWith("REPLAY ")) {
+            String arguments = line.substring(7).trim();
+            if (HistoryReplay.TRACK.equals(arguments)) {
+                connection.tracksPositions = true;
+            }
+            replayHistory(connection, arguments);
+        } else {
+            // Deliver the message to the members of the sender's room
+            String room = connection.eventLoop.rooms.activeRoom(connection);
+            if (room != null) {
+                broadcastMessage(room, MessageFrame.chat(RoomIndex.senderLabel(connection.username, room), line));
+            } else {
+                connection.send(MessageFrame.of("You are not in any room. Use JOIN <room> first."));
+            }
+        }
+    }
+
+    private void onDisconnect(Connection connection, DisconnectReason reason) {
+        metrics.disconnected(reason);
+        if (connection.username != null) {
+            connectedClients.remove(connection.username, connection);
+            System.out.println("Client disconnected: " + connection.username);
+            if (cluster != null && connectedClients.get(connection.username) == null) {
+                cluster.publishPresence(connection.username, false);
+            }
+            broadcastMessage(connection.eventLoop.rooms.leaveAll(connection), MessageFrame.of(connection.username + " has left the chat room."));
+        }
+    }
+
+    private void joinRoom(Connection connection, String room) {
+        if (!RoomIndex.isValidName(room)) {
+            connection.send(MessageFrame.of("Invalid room name: " + room));
+            return;
+        }
+        connection.eventLoop.rooms.join(connection, room);
+        System.out.println(connection.username + " joined room " + room);
+        broadcastMessage(room, MessageFrame.of(connection.username + " has joined room " + room + "."));
+    }
+
+    private void leaveRoom(Connection connection, String room) {
+        if (connection.eventLoop.rooms.leave(connection, room)) {
+            System.out.println(connection.username + " left room " + room);
+            connection.send(MessageFrame.of("You left room " + room + "."));
+            broadcastMessage(room, MessageFrame.of(connection.username + " has left room " + room + "."));
+        }
+    }
+
+    // Reads one page of missed history, then writes it on the connection's own loop
+    private void replayHistory(Connection connection, String arguments) {
+        Set<String> roomNames = connection.eventLoop.rooms.roomsOf(connection);
+        replayExecutor.execute(() -> {
+            List<MessageFrame> page = new ArrayList<>();
+            replay.handle(arguments, roomNames, page::add);
+            connection.eventLoop.execute(() -> page.forEach(connection::send));
+        });
+    }
+
+    private void broadcastMessage(String room, MessageFrame frame) {
+        broadcastMessage(Set.of(room), frame);
+    }
+
+    // Delivers to the rooms here and on every other node of the cluster
+    private void broadcastMessage(Set<String> roomNames, MessageFrame frame) {
+        if (roomNames.isEmpty()) {
+            return;
+        }
+        deliverLocally(roomNames, frame);
+        if (cluster != null) {
+            cluster.publish(roomNames, frame);
+        }
+    }
+
+    private void deliverLocally(Set<String> roomNames, MessageFrame frame) {
+        FanOut fanOut = new FanOut(eventLoops.length);
+        if (journalWriter == null) {
+            fanOut(roomNames, frame, fanOut);
+            return;
+        }
+        // The journal is one lock shared by every loop, so loops never append themselves; the
+        // writer records the frame and gives it its sequence before any loop delivers it
+        journalWriter.execute(() -> {
+            journal.append(roomNames, frame);
+            fanOut(roomNames, frame, fanOut);
+        });
+    }
+
+    private void fanOut(Set<String> roomNames, MessageFrame frame, FanOut fanOut) {
+        // Encode once; every event loop writes a duplicate of the same read-only buffer.
+        // The task queues are the shards' mailboxes: each loop delivers to its own members
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.execute(() -> fanOut.done(eventLoop.deliverToRooms(roomNames, frame)));
+        }
+    }
+
+    /**
+     * The one thread that appends to the journal. Event loops hand it broadcasts through a
+     * lock-free queue, so a loop never blocks on another loop's append, and the journal lock is
+     * only ever contended by replays reading its last sequence.
+     */
+    private final class JournalWriter implements Runnable {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+        // Set while the writer is about to park, so producers only unpark a writer that needs it
+        private volatile boolean waiting;
+        private volatile boolean running = true;
+
+        JournalWriter() {
+            thread = ClientExecutors.namedThreads("nio-journal").newThread(this);
+            thread.start();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (waiting) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        void stop() {
+            running = false;
+            LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                Runnable task = tasks.poll();
+                if (task == null) {
+                    waiting = true;
+                    // Checked again after publishing the flag, so a task added meanwhile is not missed
+                    if (tasks.isEmpty() && running) {
+                        LockSupport.park(this);
+                    }
+                    waiting = false;
+                    continue;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Error journaling broadcast: " + e);
+                }
+            }
+        }
+    }
+
+    // Adds up one broadcast's recipients across the event loops and records it once, when the last loop is done
+    private final class FanOut {
+        private final long start = System.nanoTime();
+        private final AtomicInteger loopsLeft;
+        private final AtomicInteger recipients = new AtomicInteger();
+
+        FanOut(int loops) {
+            loopsLeft = new AtomicInteger(loops);
+        }
+
+        void done(int loopRecipients) {
+            recipients.addAndGet(loopRecipients);
+            if (loopsLeft.decrementAndGet() == 0) {
+                metrics.broadcast(recipients.get(), System.nanoTime() - start);
+            }
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Set<Connection> connections = new HashSet<>();
+        // Room memberships of this loop's connections, only touched by this loop's thread
+        private final RoomIndex<Connection> rooms = new RoomIndex<>();
+        // This loop's own listening socket in SO_REUSEPORT mode, otherwise null
+        private ServerSocketChannel acceptor;
+        // Connections with frames queued since the last flush, when coalescing writes
+        private final List<Connection> unflushed = new ArrayList<>();
+        // Shared by every connection on this loop, so idle connections hold no read buffer
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        EventLoop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "nio-event-loop-" + index);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        // Binds a listening socket that shares the port with the other loops' sockets
+        void listen(int port) throws IOException {
+            acceptor = ServerSocketChannel.open();
+            acceptor.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            acceptor.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            acceptor.configureBlocking(false);
+            acceptor.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        // Hands a connection accepted by the acceptor thread to this loop
+        void register(SocketChannel channel) {
+            execute(() -> adopt(channel));
+        }
+
+        private void adopt(SocketChannel channel) {
+            try {
+                channel.configureBlocking(false);
+                Connection connection = new Connection(this, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connections.add(connection);
+                metrics.connectionOpened();
+                if (heartbeats != null) {
+                    // The wheel thread only hands these to the loop; the connection stays single threaded
+                    connection.watch = heartbeats.watch(() -> execute(() -> connection.send(PING)), () -> execute(() -> {
+                        if (!connection.closed) {
+                            System.out.println("Client timed out: " + (connection.username != null
+                                    ? connection.username : channel.socket().getRemoteSocketAddress()));
+                            connection.close(DisconnectReason.IDLE_TIMEOUT);
+                        }
+                    }));
+                }
+            } catch (IOException e) {
+                System.err.println("Error in client connection: " + e.getMessage());
+                closeQuietly(channel);
+            }
+        }
+
+        // Takes every pending connection off this loop's own listening socket
+        private void acceptAll() throws IOException {
+            SocketChannel channel;
+            while ((channel = acceptor.accept()) != null) {
+                metrics.accepted();
+                adopt(channel);
+            }
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        // Each loop only writes to its own members of the rooms, once per connection; returns how many
+        int deliverToRooms(Set<String> roomNames, MessageFrame frame) {
+            int members = 0;
+            for (String room : roomNames) {
+                members += rooms.members(room).size();
+            }
+            // Loops see their own share; the widest decides once it is reached, the rest is equally valid
+            frame.setFanOut(members);
+            int recipients = 0;
+            Set<Connection> delivered = roomNames.size() > 1 ? new HashSet<>() : null;
+            for (String room : roomNames) {
+                for (Connection connection : rooms.members(room)) {
+                    if (delivered == null || delivered.add(connection)) {
+                        connection.deliver(frame);
+                        recipients++;
+                    }
+                }
+            }
+            return recipients;
+        }
+
+        void shutdown() {
+            try {
+                if (acceptor != null) {
+                    acceptor.close();
+                }
+                selector.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (selector.isOpen()) {
+                    // Tasks queued from this thread (e.g. a broadcast on disconnect) must not wait for I/O
+                    if (tasks.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.selectNow();
+                    }
+                    runTasks();
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            acceptAll();
+                            continue;
+                        }
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                    flushQueued();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                System.err.println("Error in event loop: " + e.getMessage());
+            } finally {
+                for (Connection connection : connections.toArray(new Connection[0])) {
+                    connection.close(DisconnectReason.SERVER_STOPPED);
+                }
+            }
+        }
+
+        // Everything this iteration queued goes out with one write per connection
+        private void flushQueued() {
+            for (Connection connection : unflushed) {
+                connection.flushQueued = false;
+                if (!connection.closed) {
+                    connection.flush();
+                }
+            }
+            unflushed.clear();
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    private final class Connection {
+        private final EventLoop eventLoop;
+        private final SocketChannel channel;
+        private final Queue<ByteBuffer> outbound = new ArrayDeque<>();
+        private SelectionKey key;
+        private String username;
+        private boolean binary;
+        private boolean compressed;
+        // Inflates the client's compressed frames; null unless compression was negotiated
+        private FrameCompression.Decoder decoder;
+        // Deflates frames sent to the client into one stream; null unless compression was negotiated
+        private FrameCompression.Encoder encoder;
+        // Broadcasts held while the client is busy; null while it is available
+        private DigestQueue deferred;
+        // Set once the client asked for REPLAY_AT positions after its journaled frames
+        private boolean tracksPositions;
+        // Holds a partial line between reads; null while the connection is idle
+        private byte[] partial;
+        private int partialLength;
+        private int pendingBytes;
+        private boolean flushQueued;
+        private boolean closed;
+        // When pendingBytes last rose above the high-water mark; 0 while it is below
+        private long overSince;
+        // Null if idle timeouts are disabled
+        private HeartbeatMonitor.Watch watch;
+
+        Connection(EventLoop eventLoop, SocketChannel channel) {
+            this.eventLoop = eventLoop;
+            this.channel = channel;
+        }
+
+        void read() {
+            ByteBuffer buffer = eventLoop.readBuffer;
+            try {
+                int n;
+                while ((n = channel.read(buffer)) > 0) {
+                    buffer.flip();
+                    consume(buffer);
+                    buffer.clear();
+                    if (closed) {
+                        return;
+                    }
+                }
+                if (n < 0) {
+                    close(DisconnectReason.CLIENT_CLOSED);
+                }
+            } catch (IOException e) {
+                System.err.println("Error in client connection: " + e.getMessage());
+                close(DisconnectReason.READ_ERROR);
+            } finally {
+                buffer.clear();
+            }
+        }
+
+        // Splits the bytes read so far into lines or frames, carrying any incomplete tail over to the next read
+        private void consume(ByteBuffer buffer) {
+            while (buffer.hasRemaining() && !closed) {
+                boolean complete = binary ? consumeFrame(buffer) : consumeLine(buffer);
+                if (!complete) {
+                    stash(buffer);
+                    return;
+                }
+            }
+        }
+
+        private boolean consumeLine(ByteBuffer buffer) {
+            int start = buffer.position();
+            for (int i = start; i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    byte[] line = take(buffer, 0, partialLength + i - start + 1);
+                    int end = line.length - 1;
+                    if (end > 0 && line[end - 1] == '\r') {
+                        end--;
+                    }
+                    onMessage(this, InboundMessage.line(new String(line, 0, end, StandardCharsets.UTF_8)));
+                    return true;
+                }
+                // Same limit as stash(), for a line whose newline arrives in the same read
+                if (partialLength + i - start >= MAX_LINE_LENGTH) {
+                    System.err.println("Message too long from client, closing connection: " + username);
+                    close(DisconnectReason.READ_ERROR);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean consumeFrame(ByteBuffer buffer) {
+            int available = partialLength + buffer.remaining();
+            if (available < FrameProtocol.HEADER_LENGTH) {
+                return false;
+            }
+            int length = (byteAt(buffer, 1) & 0xff) << 24 | (byteAt(buffer, 2) & 0xff) << 16
+                    | (byteAt(buffer, 3) & 0xff) << 8 | (byteAt(buffer, 4) & 0xff);
+            if (length < 0 || length > FrameProtocol.MAX_PAYLOAD) {
+                System.err.println("Invalid frame length from client, closing connection: " + username);
+                close(DisconnectReason.READ_ERROR);
+                return true;
+            }
+            if (available < FrameProtocol.HEADER_LENGTH + length) {
+                return false;
+            }
+            byte opcode = byteAt(buffer, 0);
+            byte[] payload = take(buffer, FrameProtocol.HEADER_LENGTH, FrameProtocol.HEADER_LENGTH + length);
+            if (opcode != FrameProtocol.DEFLATED) {
+                onMessage(this, InboundMessage.frame(opcode, payload));
+                return true;
+            }
+            try {
+                if (decoder == null) {
+                    throw new IOException("compression was not negotiated");
+                }
+                onMessage(this, decoder.inflate(payload));
+            } catch (IOException e) {
+                System.err.println("Invalid compressed frame from client, closing connection: " + e.getMessage());
+                close(DisconnectReason.READ_ERROR);
+            }
+            return true;
+        }
+
+        // Byte at a position counted from the start of the pending tail, continuing into the buffer
+        private byte byteAt(ByteBuffer buffer, int index) {
+            return index < partialLength ? partial[index] : buffer.get(buffer.position() + index - partialLength);
+        }
+
+        // Consumes the first total bytes (pending tail first, then the buffer) and returns those after skip
+        private byte[] take(ByteBuffer buffer, int skip, int total) {
+            byte[] bytes = new byte[total - skip];
+            int fromPartial = Math.max(0, partialLength - skip);
+            if (fromPartial > 0) {
+                System.arraycopy(partial, skip, bytes, 0, fromPartial);
+            }
+            int fromBuffer = total - partialLength;
+            int bufferSkip = Math.max(0, skip - partialLength);
+            buffer.get(buffer.position() + bufferSkip, bytes, fromPartial, fromBuffer - bufferSkip);
+            buffer.position(buffer.position() + fromBuffer);
+            partial = null;
+            partialLength = 0;
+            return bytes;
+        }
+
+        private void stash(ByteBuffer buffer) {
+            int remaining = buffer.remaining();
+            int limit = binary ? FrameProtocol.HEADER_LENGTH + FrameProtocol.MAX_PAYLOAD : MAX_LINE_LENGTH;
+            if (partialLength + remaining > limit) {
+                System.err.println("Message too long from client, closing connection: " + username);
+                close(DisconnectReason.READ_ERROR);
+                return;
+            }
+            if (partial == null) {
+                partial = new byte[Math.min(limit, Math.max(256, remaining * 2))];
+            } else if (partial.length < partialLength + remaining) {
+                byte[] grown = new byte[Math.min(limit, (partialLength + remaining) * 2)];
+                System.arraycopy(partial, 0, grown, 0, partialLength);
+                partial = grown;
+            }
+            buffer.get(partial, partialLength, remaining);
+            partialLength += remaining;
+        }
+
+        void send(MessageFrame frame) {
+            MessageFrame position = tracksPositions ? frame.positionFrame() : null;
+            if (sendFrame(frame) && position != null) {
+                sendFrame(position);
+            }
+        }
+
+        void deliver(MessageFrame frame) {
+            if (deferred != null) {
+                deferred.add(frame);
+            } else {
+                send(frame);
+            }
+        }
+
+        // A frame is only compressed into the connection's stream once it is sure to be queued,
+        // since the client cannot inflate the stream past a piece that was dropped
+        private boolean sendFrame(MessageFrame frame) {
+            if (encoder == null || !encoder.wants(frame)) {
+                return write(frame.buffer(binary, compressed));
+            }
+            ByteBuffer plain = frame.binaryBuffer();
+            return admit(plain.remaining()) && enqueue(encoder.deflate(plain));
+        }
+
+        // Must be called on the owning event loop; returns false if the frame was dropped
+        boolean write(ByteBuffer frame) {
+            return admit(frame.remaining()) && enqueue(frame);
+        }
+
+        // Applies the slow consumer policy to a frame of the given size; returns false if it must be dropped
+        private boolean admit(int bytes) {
+            if (closed) {
+                return false;
+            }
+            if (outbound.isEmpty() && !COALESCE_WRITES) {
+                // Written straight away; whatever the socket does not take is queued as the rest of it
+                return true;
+            }
+            if (SLOW_CONSUMER_POLICY == SlowConsumerPolicy.DISCONNECT && stalled()) {
+                System.err.println("Client not reading, evicting: " + username);
+                close(DisconnectReason.SLOW_CONSUMER);
+                return false;
+            }
+            if (pendingBytes + bytes > MAX_PENDING_BYTES) {
+                if (SLOW_CONSUMER_POLICY == SlowConsumerPolicy.DROP_OLDEST) {
+                    dropOldest(bytes);
+                }
+                if (pendingBytes + bytes > MAX_PENDING_BYTES) {
+                    metrics.dropped(1);
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Writes or queues an admitted frame; returns false if the connection failed
+        private boolean enqueue(ByteBuffer frame) {
+            if (outbound.isEmpty() && !COALESCE_WRITES) {
+                try {
+                    channel.write(frame);
+                } catch (IOException e) {
+                    close(DisconnectReason.WRITE_ERROR);
+                    return false;
+                }
+                metrics.flushed(frame.hasRemaining() ? 0 : 1);
+                if (!frame.hasRemaining()) {
+                    return true;
+                }
+            }
+            outbound.add(frame);
+            pendingBytes += frame.remaining();
+            if (!COALESCE_WRITES) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            } else if (!flushQueued) {
+                flushQueued = true;
+                eventLoop.unflushed.add(this);
+            }
+            return true;
+        }
+
+        // True once the backlog has stayed above the high-water mark for the grace period
+        private boolean stalled() {
+            if (pendingBytes < HIGH_WATER_BYTES) {
+                overSince = 0;
+                return false;
+            }
+            long now = System.nanoTime();
+            if (overSince == 0) {
+                overSince = now | 1;
+                return false;
+            }
+            return now - overSince > SlowConsumerPolicy.GRACE_NANOS;
+        }
+
+        // Discards the oldest unsent frames until there is room; the head may be partly written, so it stays
+        private void dropOldest(int needed) {
+            Iterator<ByteBuffer> queued = outbound.iterator();
+            if (queued.hasNext()) {
+                queued.next();
+            }
+            int count = 0;
+            while (pendingBytes + needed > MAX_PENDING_BYTES && queued.hasNext()) {
+                pendingBytes -= queued.next().remaining();
+                queued.remove();
+                count++;
+            }
+            metrics.dropped(count);
+        }
+
+        // Gathering writes of everything queued, until it is all sent or the socket is full
+        void flush() {
+            try {
+                while (!outbound.isEmpty()) {
+                    ByteBuffer[] buffers = outbound.toArray(new ByteBuffer[0]);
+                    pendingBytes -= (int) channel.write(buffers);
+                    int completed = 0;
+                    while (completed < buffers.length && !buffers[completed].hasRemaining()) {
+                        outbound.poll();
+                        completed++;
+                    }
+                    metrics.flushed(completed);
+                    if (completed < buffers.length) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                close(DisconnectReason.WRITE_ERROR);
+            }
+        }
+
+        // Tells the client why in one best-effort write, bypassing the queue, then drops it
+        void refuse(MessageFrame reason) {
+            try {
+                channel.write(reason.buffer(binary));
+            } catch (IOException e) {
+                // Closing anyway
+            }
+            close(DisconnectReason.READ_ERROR);
+        }
+
+        void close(DisconnectReason reason) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (watch != null) {
+                watch.cancel();
+            }
+            if (reason == DisconnectReason.WRITE_ERROR || reason == DisconnectReason.SLOW_CONSUMER
+                    || reason == DisconnectReason.IDLE_TIMEOUT) {
+                // Unregistered below by onDisconnect, before anything else is written to it
+                metrics.evicted();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+            eventLoop.connections.remove(this);
+            outbound.clear();
+            partial = null;
+            if (decoder != null) {
+                decoder.close();
+                decoder = null;
+            }
+            if (encoder != null) {
+                encoder.close();
+                encoder = null;
+            }
+            onDisconnect(this, reason);
+        }
+    }
+
+    private static boolean supportsReusePort() {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    public static void main(String[] args) {
+        NioChatServer server = new NioChatServer();
+        server.start();
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.finalserver;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Appends log text to a file on its own thread, rolling {@code server.log} to {@code server.log.1}
+ * and so on once it passes the size limit. Chunks that arrive while the writer is backed up are
+ * dropped and counted rather than blocking the caller.
+ */
+public class RollingLogFile {
+    // Path of the log file; no file is written unless this is set
+    public static final String FILE = System.getProperty("chat.log.file");
+    public static final long MAX_BYTES = Long.getLong("chat.log.file.maxBytes", 16L << 20);
+    public static final int MAX_FILES = Integer.getInteger("chat.log.file.count", 5);
+    private static final int QUEUE_CAPACITY = 1024;
+
+    private final Path path;
+    private final long maxBytes;
+    private final int maxFiles;
+    private final ThreadPoolExecutor writerExecutor;
+    private final AtomicLong dropped = new AtomicLong();
+    // Only touched by the writer thread
+    private Writer writer;
+    // Characters written to the current file, close enough to bytes for rolling
+    private long bytes;
+
+    public RollingLogFile(Path path, long maxBytes, int maxFiles) throws IOException {
+        this.path = path;
+        this.maxBytes = maxBytes;
+        this.maxFiles = Math.max(1, maxFiles);
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        open();
+        writerExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY), ClientExecutors.namedThreads("log-file"),
+                (task, executor) -> dropped.incrementAndGet());
+    }
+
+    public static RollingLogFile openDefault() {
+        if (FILE == null || FILE.isBlank()) {
+            return null;
+        }
+        try {
+            return new RollingLogFile(Paths.get(FILE), MAX_BYTES, MAX_FILES);
+        } catch (IOException e) {
+            System.err.println("Log file disabled: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Queues text that already ends in a newline; never blocks
+    public void write(String text) {
+        writerExecutor.execute(() -> append(text));
+    }
+
+    public long droppedCount() {
+        return dropped.get();
+    }
+
+    public void close() {
+        writerExecutor.shutdown();
+        try {
+            writerExecutor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void append(String text) {
+        try {
+            if (writer == null) {
+                open();
+            }
+            writer.write(text);
+            // One flush per chunk; chunks are already batched by the caller
+            writer.flush();
+            bytes += text.length();
+            if (bytes >= maxBytes) {
+                roll();
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing log file " + path + ": " + e.getMessage());
+            closeWriter();
+        }
+    }
+
+    private void open() throws IOException {
+        writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        bytes = Files.size(path);
+    }
+
+    private void roll() throws IOException {
+        closeWriter();
+        for (int i = maxFiles - 2; i >= 1; i--) {
+            Path older = rolled(i);
+            if (Files.exists(older)) {
+                Files.move(older, rolled(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 1) {
+            Files.move(path, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(path);
+        }
+        open();
+    }
+
+    private Path rolled(int index) {
+        return path.resolveSibling(path.getFileName() + "." + index);
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            writer = null;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.finalserver;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Room to member index, so a chat line is only delivered to the members of the sender's room.
+ * Each client also has an active room: the one it joined last, where its own messages go.
+ */
+public class RoomIndex<C> {
+    public static final String DEFAULT_ROOM = "lobby";
+
+    private final ConcurrentHashMap<String, Set<C>> members = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<C, Membership> memberships = new ConcurrentHashMap<>();
+
+    public void join(C client, String room) {
+        // compute() keeps the add atomic with a concurrent leave emptying the same room
+        members.compute(room, (name, set) -> {
+            Set<C> result = set != null ? set : ConcurrentHashMap.newKeySet();
+            result.add(client);
+            return result;
+        });
+        Membership membership = memberships.computeIfAbsent(client, c -> new Membership());
+        membership.rooms.add(room);
+        membership.active = room;
+    }
+
+    // Returns false if the client was not in the room
+    public boolean leave(C client, String room) {
+        boolean[] removed = new boolean[1];
+        members.computeIfPresent(room, (name, set) -> {
+            removed[0] = set.remove(client);
+            return set.isEmpty() ? null : set;
+        });
+
+        Membership membership = memberships.get(client);
+        if (membership != null) {
+            membership.rooms.remove(room);
+            if (room.equals(membership.active)) {
+                // Fall back to any other room the client is still in
+                membership.active = membership.rooms.isEmpty() ? null : membership.rooms.iterator().next();
+            }
+        }
+        return removed[0];
+    }
+
+    // Removes the client from every room and returns the rooms it was in
+    public Set<String> leaveAll(C client) {
+        Membership membership = memberships.remove(client);
+        if (membership == null) {
+            return Collections.emptySet();
+        }
+        for (String room : membership.rooms) {
+            members.computeIfPresent(room, (name, set) -> {
+                set.remove(client);
+                return set.isEmpty() ? null : set;
+            });
+        }
+        return membership.rooms;
+    }
+
+    // Weakly consistent view of the room's members; empty if the room does not exist
+    public Collection<C> members(String room) {
+        Set<C> set = members.get(room);
+        return set != null ? Collections.unmodifiableSet(set) : Collections.emptySet();
+    }
+
+    // The room the client's messages go to, or null if it has left every room
+    public String activeRoom(C client) {
+        Membership membership = memberships.get(client);
+        return membership != null ? membership.active : null;
+    }
+
+    public Set<String> roomsOf(C client) {
+        Membership membership = memberships.get(client);
+        return membership != null ? Collections.unmodifiableSet(membership.rooms) : Collections.emptySet();
+    }
+
+    public Set<String> rooms() {
+        return Collections.unmodifiableSet(members.keySet());
+    }
+
+    // Chat lines outside the default room carry the room name so clients can tell them apart
+    public static String senderLabel(String username, String room) {
+        return DEFAULT_ROOM.equals(room) ? username : "[" + room + "] " + username;
+    }
+
+    public static boolean isValidName(String room) {
+        return !room.isEmpty() && room.length() <= 64 && room.chars().noneMatch(Character::isWhitespace);
+    }
+
+    private static final class Membership {
+        private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+        private volatile String active;
+    }
+}
@@ -1,21 +1,53 @@
 package com.example.finalserver;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.sql.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class Server {
-    private static final int SERVER_PORT = 5570;
+    private static final int SERVER_PORT = Integer.getInteger("chat.port", 5570);
     private static final String DB_URL = "jdbc:mysql://localhost:3306/db";
     private static final String DB_USERNAME = "username";
     private static final String DB_PASSWORD = "password";
+    private static final int DB_POOL_SIZE = Integer.getInteger("chat.db.poolSize", 10);
+    private static final int DB_POOL_MIN_IDLE = Integer.getInteger("chat.db.minIdle", 2);
+    private static final long DB_MAX_WAIT_MILLIS = Long.getLong("chat.db.maxWaitMillis", 5000);
+    private static final int DB_VALIDATION_TIMEOUT_SECONDS = Integer.getInteger("chat.db.validationTimeoutSeconds", 2);
+    private static final long DB_VALIDATE_AFTER_MILLIS = Long.getLong("chat.db.validateAfterMillis", 5000);
+    private static final int AUTH_CACHE_SIZE = Integer.getInteger("chat.auth.cacheSize", 10000);
+    private static final long SIGNUP_BATCH_WINDOW_MILLIS = Long.getLong("chat.signup.batchWindowMillis", 5);
+    private static final int SIGNUP_MAX_BATCH = Integer.getInteger("chat.signup.maxBatch", 100);
+    // How long a handler waits for its batched signup before answering SIGNUP_FAILED
+    private static final long SIGNUP_TIMEOUT_MILLIS = Long.getLong("chat.signup.timeoutMillis", 10_000);
+    private static final long AUTH_CACHE_TTL_MILLIS = Long.getLong("chat.auth.cacheTtlMillis", 300_000);
 
     private ServerSocket serverSocket;
-    private Connection dbConnection;
-    private List<ClientHandler> clients;
+    private ConnectionPool connectionPool;
+    private SignupBatcher signupBatcher;
+    private CredentialCache credentialCache = new CredentialCache(AUTH_CACHE_SIZE, AUTH_CACHE_TTL_MILLIS);
+    private ClientRegistry<ClientHandler> clients;
+    private RoomIndex<ClientHandler> rooms;
+    // History of room broadcasts; null if journaling is disabled
+    private MessageJournal journal;
+    private HistoryReplay replay;
+    private ExecutorService clientExecutor;
+    private ServerMetrics metrics;
+    // Link to the other nodes; null unless clustering is configured
+    private ClusterNode cluster;
+    // Pings quiet clients and expires silent ones; null if idle timeouts are disabled
+    private HeartbeatMonitor heartbeats;
 
     public static void main(String[] args) {
         Server chatServer = new Server();
@@ -26,18 +58,50 @@ public class Server {
         System.out.println("Chat server started.");
 
         try {
-            serverSocket = new ServerSocket(SERVER_PORT);
-            dbConnection = DriverManager.getConnection(DB_URL, DB_USERNAME, DB_PASSWORD);
-            clients = new ArrayList<>();
+            // Channel-backed sockets let client writers use gathering writes
+            serverSocket = ServerSocketChannel.open().socket();
+            serverSocket.bind(new InetSocketAddress(SERVER_PORT));
+            connectionPool = new ConnectionPool(DB_URL, DB_USERNAME, DB_PASSWORD, DB_POOL_SIZE, DB_MAX_WAIT_MILLIS,
+                    DB_VALIDATION_TIMEOUT_SECONDS, DB_VALIDATE_AFTER_MILLIS);
+            connectionPool.prefill(DB_POOL_MIN_IDLE);
+            clients = new ClientRegistry<>();
+            rooms = new RoomIndex<>();
+            journal = MessageJournal.openDefault(SERVER_PORT);
+            replay = new HistoryReplay(journal);
+            clientExecutor = ClientExecutors.newClientExecutor("client-handler");
+            metrics = ServerMetrics.register("Server");
+            if (SIGNUP_BATCH_WINDOW_MILLIS > 0) {
+                signupBatcher = new SignupBatcher(connectionPool, metrics, SIGNUP_MAX_BATCH, SIGNUP_BATCH_WINDOW_MILLIS);
+            }
+            metrics.setQueueDepthSource(clients.clients(),
+                    handler -> handler.connection != null ? handler.connection.queueDepth() : 0);
+            heartbeats = HeartbeatMonitor.openDefault();
+            cluster = ClusterNode.startDefault(new ClusterNode.Listener() {
+                @Override
+                public void onBroadcast(Set<String> roomNames, MessageFrame frame) {
+                    deliverToRooms(roomNames, frame, null);
+                }
+
+                @Override
+                public void onPresence(String username, boolean online, String node) {
+                    // Users on other nodes come and go like local ones
+                    deliverToAll(MessageFrame.of((online ? "USER_JOINED " : "USER_LEFT ") + username), null);
+                }
+
+                @Override
+                public Collection<String> localUsers() {
+                    return clients.usernames();
+                }
+            });
 
             while (true) {
                 Socket clientSocket = serverSocket.accept();
+                metrics.accepted();
                 System.out.println("New client connected: " + clientSocket);
 
                 ClientHandler clientHandler = new ClientHandler(clientSocket);
                 clients.add(clientHandler);
-                Thread clientThread = new Thread(clientHandler);
-                clientThread.start();
+                clientExecutor.execute(clientHandler);
             }
         } catch (IOException | SQLException e) {
             e.printStackTrace();
@@ -49,14 +113,81 @@ public class Server {
                     e.printStackTrace();
                 }
             }
+            if (signupBatcher != null) {
+                signupBatcher.close();
+            }
+            if (journal != null) {
+                journal.close();
+            }
+            if (cluster != null) {
+                cluster.close();
+            }
+            if (heartbeats != null) {
+                heartbeats.close();
+            }
+            if (connectionPool != null) {
+                connectionPool.close();
+            }
+        }
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    // Encoded once and shared by every recipient's queue
+    private void deliverToAll(MessageFrame frame, ClientHandler except) {
+        frame.setFanOut(clients.size());
+        for (ClientHandler client : clients.clients()) {
+            if (client != except) {
+                client.sendMessageToClient(frame);
+            }
         }
     }
 
+    // Delivers once to every local member of the rooms except the sender
+    private void deliverToRooms(Set<String> roomNames, MessageFrame frame, ClientHandler except) {
+        long start = System.nanoTime();
+        int recipients = 0;
+        if (roomNames.size() == 1) {
+            String room = roomNames.iterator().next();
+            if (journal != null) {
+                journal.append(room, frame);
+            }
+            frame.setFanOut(rooms.members(room).size());
+            for (ClientHandler client : rooms.members(room)) {
+                if (client != except) {
+                    client.sendMessageToClient(frame);
+                    recipients++;
+                }
+            }
+        } else {
+            if (journal != null) {
+                // One record for all the rooms, as the frame is delivered once
+                journal.append(roomNames, frame);
+            }
+            Set<ClientHandler> members = new HashSet<>();
+            for (String room : roomNames) {
+                members.addAll(rooms.members(room));
+            }
+            members.remove(except);
+            frame.setFanOut(members.size());
+            for (ClientHandler client : members) {
+                client.sendMessageToClient(frame);
+            }
+            recipients = members.size();
+        }
+        metrics.broadcast(recipients, System.nanoTime() - start);
+    }
+
     private class ClientHandler implements Runnable {
         private Socket clientSocket;
-        private BufferedReader reader;
-        private BufferedWriter writer;
-        private String currentUsername;
+        private ClientReader reader;
+        private volatile ClientConnection connection;
+        // Null if idle timeouts are disabled
+        private HeartbeatMonitor.Watch watch;
+        // Read by the writer thread when the client is evicted
+        private volatile String currentUsername;
 
         public ClientHandler(Socket socket) {
             this.clientSocket = socket;
@@ -64,26 +195,105 @@ public class Server {
 
         @Override
         public void run() {
+            ServerMetrics.DisconnectReason reason = ServerMetrics.DisconnectReason.CLIENT_CLOSED;
             try {
-                reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                writer = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()));
+                reader = new ClientReader(clientSocket.getInputStream());
 
-                String message;
-                while ((message = reader.readLine()) != null) {
-                    System.out.println("Received message from client: " + message);
+                // A client may ask for binary frames before anything else
+                // A client that never sends anything is dropped after the idle timeout
+                clientSocket.setSoTimeout((int) Math.max(0, HeartbeatMonitor.TIMEOUT_MILLIS));
+                String firstLine = reader.readLine();
+                clientSocket.setSoTimeout(0);
+                boolean binary = FrameProtocol.isBinaryHello(firstLine);
+                boolean compressed = binary && FrameProtocol.acceptsDeflate(firstLine);
+                if (binary) {
+                    FrameProtocol.acceptBinary(clientSocket, compressed);
+                    reader.switchToBinary(compressed);
+                }
 
-                    if (message.startsWith("SIGNUP")) {
-                        handleSignup(message);
-                    } else if (message.startsWith("LOGIN")) {
-                        handleLogin(message);
-                    } else {
-                        sendMessageToAllClients(message);
-                    }
+                // Replies and broadcasts are queued and written by the connection's own writer task
+                connection = new ClientConnection(clientSocket.toString(), clientSocket, clientExecutor, binary,
+                        compressed, metrics);
+                metrics.connectionOpened();
+                // A failed write or a slow consumer is unregistered at once, not when its reader ends
+                connection.setEvictionListener(() -> clients.remove(currentUsername, this));
+                if (heartbeats != null) {
+                    ClientConnection watched = connection;
+                    watch = heartbeats.watch(() -> watched.send(FrameProtocol.PING), () -> {
+                        System.out.println("Client timed out: " + clientSocket);
+                        // Closing the socket also wakes the reader, which cleans up as for any disconnect
+                        watched.evict(ServerMetrics.DisconnectReason.IDLE_TIMEOUT);
+                    });
+                }
+                // Chat is routed by room from the first line on, logged in or not
+                rooms.join(this, RoomIndex.DEFAULT_ROOM);
+
+                if (firstLine != null && !binary) {
+                    handleMessage(InboundMessage.line(firstLine));
+                }
+                InboundMessage message;
+                while (firstLine != null && (message = reader.read()) != null) {
+                    handleMessage(message);
                 }
             } catch (IOException e) {
                 e.printStackTrace();
+                reason = ServerMetrics.DisconnectReason.READ_ERROR;
             } finally {
-                disconnectClient();
+                disconnectClient(reason);
+            }
+        }
+
+        private void handleMessage(InboundMessage message) {
+            metrics.messageIn();
+            if (watch != null) {
+                watch.touch();
+            }
+            if (message.isChat()) {
+                // Binary chat frames are routed as raw bytes without decoding the payload
+                System.out.println("Received message from client: " + message.length() + " bytes");
+                sendMessageToRoom(MessageFrame.relay(message.payload()));
+                return;
+            }
+
+            String text = message.text();
+            if (FrameProtocol.PONG.equals(text)) {
+                return;
+            }
+            System.out.println("Received message from client: " + text);
+
+            if (text.startsWith("SIGNUP")) {
+                handleSignup(text);
+            } else if (text.startsWith("LOGIN")) {
+                handleLogin(text);
+            } else if (text.startsWith("JOIN ")) {
+                handleJoin(text.substring(5).trim());
+            } else if (text.startsWith("LEAVE ")) {
+                handleLeave(text.substring(6).trim());
+            } else if (text.startsWith("REPLAY ")) {
+                String arguments = text.substring(7).trim();
+                if (HistoryReplay.TRACK.equals(arguments) && connection != null) {
+                    connection.trackPositions();
+                }
+                replay.handle(arguments, rooms.roomsOf(this), this::sendMessageToClient);
+            } else {
+                sendMessageToRoom(MessageFrame.of(text));
+            }
+        }
+
+        private void handleJoin(String room) {
+            if (!RoomIndex.isValidName(room)) {
+                sendMessageToClient("INVALID_ROOM " + room);
+                return;
+            }
+            rooms.join(this, room);
+            sendMessageToClient("JOINED " + room);
+        }
+
+        private void handleLeave(String room) {
+            if (rooms.leave(this, room)) {
+                sendMessageToClient("LEFT " + room);
+            } else {
+                sendMessageToClient("NOT_IN_ROOM " + room);
             }
         }
 
@@ -92,8 +302,13 @@ public class Server {
             if (parts.length == 3) {
                 String username = parts[1];
                 String password = parts[2];
-                if (!userExists(username)) {
-                    if (createUser(username, password)) {
+                if (!ClientRegistry.isValidUsername(username)) {
+                    sendMessageToClient("SIGNUP_FAILED");
+                } else if (signupBatcher != null) {
+                    handleBatchedSignup(username, password);
+                } else if (!runBlocking(ServerMetrics.Query.USER_EXISTS, () -> userExists(username))) {
+                    if (runBlocking(ServerMetrics.Query.CREATE_USER, () -> createUser(username, password))) {
+                        credentialCache.invalidate(username);
                         sendMessageToClient("SIGNUP_SUCCESS");
                     } else {
                         sendMessageToClient("SIGNUP_FAILED");
@@ -106,15 +321,56 @@ public class Server {
             }
         }
 
+        // The existence check and insert are grouped with other handlers' signups into one transaction
+        private void handleBatchedSignup(String username, String password) {
+            SignupBatcher.Result result;
+            try {
+                // The batcher records the lookup and insert themselves, without the batch window
+                result = signupBatcher.submit(username, password).get(SIGNUP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result = SignupBatcher.Result.FAILED;
+            } catch (ExecutionException | TimeoutException e) {
+                System.err.println("Signup for " + username + " did not complete: " + e);
+                result = SignupBatcher.Result.FAILED;
+            }
+            switch (result) {
+                case CREATED:
+                    credentialCache.invalidate(username);
+                    sendMessageToClient("SIGNUP_SUCCESS");
+                    break;
+                case USERNAME_EXISTS:
+                    sendMessageToClient("USERNAME_EXISTS");
+                    break;
+                default:
+                    sendMessageToClient("SIGNUP_FAILED");
+                    break;
+            }
+        }
+
         private void handleLogin(String message) {
             String[] parts = message.split(" ");
             if (parts.length == 3) {
                 String username = parts[1];
                 String password = parts[2];
-                if (authenticateUser(username, password)) {
+                if (!ClientRegistry.isValidUsername(username)) {
+                    sendMessageToClient("LOGIN_FAILED");
+                    return;
+                }
+                // Reconnects within the cache TTL are verified without a database round trip
+                boolean authenticated = credentialCache.verify(username, password);
+                if (!authenticated && runBlocking(ServerMetrics.Query.AUTHENTICATE_USER, () -> authenticateUser(username, password))) {
+                    credentialCache.put(username, password);
+                    authenticated = true;
+                }
+                if (authenticated) {
                     sendMessageToClient("LOGIN_SUCCESS");
                     currentUsername = username;
+                    clients.add(username, this);
                     sendMessageToAllClients("USER_JOINED " + username);
+                    if (cluster != null) {
+                        cluster.publishPresence(username, true);
+                    }
                 } else {
                     sendMessageToClient("LOGIN_FAILED");
                 }
@@ -123,88 +379,141 @@ public class Server {
             }
         }
 
+        // Times the query including the wait for a pooled connection
+        private boolean runBlocking(ServerMetrics.Query query, Callable<Boolean> call) {
+            long start = System.nanoTime();
+            try {
+                return ClientExecutors.callBlocking(call);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return false;
+            } finally {
+                metrics.query(query, System.nanoTime() - start);
+            }
+        }
+
         private boolean userExists(String username) {
+            ConnectionPool.PooledConnection pooled = null;
             PreparedStatement statement = null;
             ResultSet resultSet = null;
+            boolean failed = false;
             try {
-                statement = dbConnection.prepareStatement("SELECT * FROM users WHERE username = ?");
+                pooled = connectionPool.borrow();
+                statement = pooled.prepare("SELECT * FROM users WHERE username = ?");
                 statement.setString(1, username);
                 resultSet = statement.executeQuery();
                 return resultSet.next();
             } catch (SQLException e) {
+                failed = true;
                 e.printStackTrace();
             } finally {
                 closeResultSet(resultSet);
-                closeStatement(statement);
+                connectionPool.release(pooled, failed);
             }
             return false;
         }
 
         private boolean createUser(String username, String password) {
+            ConnectionPool.PooledConnection pooled = null;
             PreparedStatement statement = null;
+            boolean failed = false;
             try {
-                statement = dbConnection.prepareStatement("INSERT INTO users (username, password) VALUES (?, ?)");
+                pooled = connectionPool.borrow();
+                statement = pooled.prepare("INSERT INTO users (username, password) VALUES (?, ?)");
                 statement.setString(1, username);
                 statement.setString(2, password);
                 int rowsInserted = statement.executeUpdate();
                 return rowsInserted > 0;
             } catch (SQLException e) {
+                failed = true;
                 e.printStackTrace();
             } finally {
-                closeStatement(statement);
+                connectionPool.release(pooled, failed);
             }
             return false;
         }
 
         private boolean authenticateUser(String username, String password) {
+            ConnectionPool.PooledConnection pooled = null;
             PreparedStatement statement = null;
             ResultSet resultSet = null;
+            boolean failed = false;
             try {
-                statement = dbConnection.prepareStatement("SELECT * FROM users WHERE username = ? AND password = ?");
+                pooled = connectionPool.borrow();
+                statement = pooled.prepare("SELECT * FROM users WHERE username = ? AND password = ?");
                 statement.setString(1, username);
                 statement.setString(2, password);
                 resultSet = statement.executeQuery();
                 return resultSet.next();
             } catch (SQLException e) {
+                failed = true;
                 e.printStackTrace();
             } finally {
                 closeResultSet(resultSet);
-                closeStatement(statement);
+                connectionPool.release(pooled, failed);
             }
             return false;
         }
 
         private void sendMessageToClient(String message) {
-            try {
-                writer.write(message + "\n");
-                writer.flush();
-            } catch (IOException e) {
-                e.printStackTrace();
+            sendMessageToClient(MessageFrame.of(message));
+        }
+
+        private void sendMessageToClient(MessageFrame frame) {
+            if (connection != null) {
+                connection.send(frame);
             }
         }
 
         private void sendMessageToAllClients(String message) {
-            for (ClientHandler client : clients) {
-                if (!client.equals(this)) {
-                    client.sendMessageToClient(message);
-                }
+            sendMessageToAllClients(MessageFrame.of(message));
+        }
+
+        private void sendMessageToAllClients(MessageFrame frame) {
+            deliverToAll(frame, this);
+        }
+
+        // Chat goes only to the members of this client's active room
+        private void sendMessageToRoom(MessageFrame frame) {
+            String room = rooms.activeRoom(this);
+            if (room == null) {
+                sendMessageToClient("NOT_IN_ROOM");
+                return;
+            }
+            Set<String> roomNames = Collections.singleton(room);
+            deliverToRooms(roomNames, frame, this);
+            if (cluster != null) {
+                cluster.publish(roomNames, frame);
             }
         }
 
-        private void disconnectClient() {
+        private void disconnectClient(ServerMetrics.DisconnectReason reason) {
+            if (watch != null) {
+                watch.cancel();
+            }
             try {
                 if (clientSocket != null && !clientSocket.isClosed()) {
                     clientSocket.close();
                 }
                 System.out.println("Client disconnected: " + clientSocket);
 
+                // Unregister first so the departure notice and later broadcasts skip this handler
+                clients.remove(currentUsername, this);
+                rooms.leaveAll(this);
+
                 if (currentUsername != null) {
                     sendMessageToAllClients("USER_LEFT " + currentUsername);
+                    if (cluster != null && clients.get(currentUsername) == null) {
+                        cluster.publishPresence(currentUsername, false);
+                    }
                 }
             } catch (IOException e) {
                 e.printStackTrace();
             } finally {
-                closeWriter(writer);
+                if (connection != null) {
+                    connection.close(reason);
+                    metrics.disconnected(connection.closeReason());
+                }
                 closeReader(reader);
             }
         }
@@ -219,17 +528,7 @@ public class Server {
             }
         }
 
-        private void closeStatement(PreparedStatement statement) {
-            if (statement != null) {
-                try {
-                    statement.close();
-                } catch (SQLException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        private void closeReader(BufferedReader reader) {
+        private void closeReader(ClientReader reader) {
             if (reader != null) {
                 try {
                     reader.close();
@@ -238,15 +537,5 @@ public class Server {
                 }
             }
         }
-
-        private void closeWriter(BufferedWriter writer) {
-            if (writer != null) {
-                try {
-                    writer.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
     }
 }
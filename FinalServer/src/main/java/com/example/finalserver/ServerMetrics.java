@@ -0,0 +1,224 @@
+package com.example.finalserver;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for one server, registered as the MXBean
+ * {@code com.example.finalserver:type=ServerMetrics,name=<server>}. Updates are adder increments,
+ * and broadcast timing is taken once per broadcast, not per recipient.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    public enum DisconnectReason {
+        CLIENT_CLOSED, READ_ERROR, WRITE_ERROR, SLOW_CONSUMER, IDLE_TIMEOUT, REPLACED, KICKED, SERVER_STOPPED
+    }
+
+    public enum Query {
+        AUTHENTICATE_USER, USER_EXISTS, CREATE_USER
+    }
+
+    private final LongAdder accepts = new LongAdder();
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder closed = new LongAdder();
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder broadcasts = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder flushedFrames = new LongAdder();
+    private final LongAdder droppedFrames = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LatencyHistogram fanOut = new LatencyHistogram();
+    private final LatencyHistogram[] queries = new LatencyHistogram[Query.values().length];
+    private final LongAdder[] disconnects = new LongAdder[DisconnectReason.values().length];
+    // Read only when the queue depth attribute is fetched
+    private volatile QueueDepthSource<?> queueDepthSource;
+
+    public ServerMetrics() {
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < disconnects.length; i++) {
+            disconnects[i] = new LongAdder();
+        }
+    }
+
+    // Creates metrics for a server and registers them with the platform MBean server
+    public static ServerMetrics register(String serverName) {
+        ServerMetrics metrics = new ServerMetrics();
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("com.example.finalserver:type=ServerMetrics,name=" + serverName);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(metrics, name);
+        } catch (JMException e) {
+            System.err.println("Metrics not exposed over JMX: " + e.getMessage());
+        }
+        return metrics;
+    }
+
+    public void accepted() {
+        accepts.increment();
+    }
+
+    public void connectionOpened() {
+        opened.increment();
+    }
+
+    public void disconnected(DisconnectReason reason) {
+        closed.increment();
+        disconnects[reason.ordinal()].increment();
+    }
+
+    public void messageIn() {
+        messagesIn.increment();
+    }
+
+    // One broadcast handed to recipients, and how long the fan-out took
+    public void broadcast(int recipients, long nanos) {
+        broadcasts.increment();
+        messagesOut.add(recipients);
+        fanOut.record(nanos);
+    }
+
+    // One socket write and the number of frames it completed
+    public void flushed(int frames) {
+        flushes.increment();
+        flushedFrames.add(frames);
+    }
+
+    // Frames a slow client's queue refused or discarded
+    public void dropped(int frames) {
+        droppedFrames.add(frames);
+    }
+
+    // A client taken out of the registry by the server: a write failure, slow consumer or idle timeout
+    public void evicted() {
+        evictions.increment();
+    }
+
+    public void query(Query query, long nanos) {
+        queries[query.ordinal()].record(nanos);
+    }
+
+    // Per-client outbound queue depth, computed from the live clients when it is read
+    public <C> void setQueueDepthSource(Collection<C> clients, ToIntFunction<C> depth) {
+        queueDepthSource = new QueueDepthSource<>(clients, depth);
+    }
+
+    @Override
+    public long getAccepts() {
+        return accepts.sum();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return opened.sum() - closed.sum();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return broadcasts.sum();
+    }
+
+    @Override
+    public long getFlushes() {
+        return flushes.sum();
+    }
+
+    @Override
+    public double getFramesPerFlush() {
+        long count = flushes.sum();
+        return count == 0 ? 0 : (double) flushedFrames.sum() / count;
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public Map<String, Double> getBroadcastFanOutMicros() {
+        return fanOut.summaryMicros();
+    }
+
+    @Override
+    public Map<String, Long> getQueueDepth() {
+        QueueDepthSource<?> source = queueDepthSource;
+        return source != null ? source.summary() : Map.of();
+    }
+
+    @Override
+    public Map<String, Double> getAuthenticateUserMicros() {
+        return queries[Query.AUTHENTICATE_USER.ordinal()].summaryMicros();
+    }
+
+    @Override
+    public Map<String, Double> getUserExistsMicros() {
+        return queries[Query.USER_EXISTS.ordinal()].summaryMicros();
+    }
+
+    @Override
+    public Map<String, Double> getCreateUserMicros() {
+        return queries[Query.CREATE_USER.ordinal()].summaryMicros();
+    }
+
+    @Override
+    public Map<String, Long> getDisconnects() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (DisconnectReason reason : DisconnectReason.values()) {
+            result.put(reason.name(), disconnects[reason.ordinal()].sum());
+        }
+        return result;
+    }
+
+    private static final class QueueDepthSource<C> {
+        private final Collection<C> clients;
+        private final ToIntFunction<C> depth;
+
+        QueueDepthSource(Collection<C> clients, ToIntFunction<C> depth) {
+            this.clients = clients;
+            this.depth = depth;
+        }
+
+        Map<String, Long> summary() {
+            long clientsCount = 0;
+            long total = 0;
+            long max = 0;
+            for (C client : clients) {
+                int value = depth.applyAsInt(client);
+                clientsCount++;
+                total += value;
+                max = Math.max(max, value);
+            }
+            Map<String, Long> result = new LinkedHashMap<>();
+            result.put("clients", clientsCount);
+            result.put("total", total);
+            result.put("max", max);
+            return result;
+        }
+    }
+}
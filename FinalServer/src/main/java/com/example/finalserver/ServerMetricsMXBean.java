@@ -0,0 +1,41 @@
+package com.example.finalserver;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link ServerMetrics}. Latency attributes are summaries (count, mean, p50, p99,
+ * p999, max) in microseconds.
+ */
+public interface ServerMetricsMXBean {
+    long getAccepts();
+
+    long getActiveConnections();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getBroadcasts();
+
+    // Socket writes, and how many frames each carried on average
+    long getFlushes();
+
+    double getFramesPerFlush();
+
+    // Frames dropped for slow clients, and clients evicted for write failures, slowness or silence
+    long getDroppedFrames();
+
+    long getEvictions();
+
+    Map<String, Double> getBroadcastFanOutMicros();
+
+    Map<String, Long> getQueueDepth();
+
+    Map<String, Double> getAuthenticateUserMicros();
+
+    Map<String, Double> getUserExistsMicros();
+
+    Map<String, Double> getCreateUserMicros();
+
+    Map<String, Long> getDisconnects();
+}
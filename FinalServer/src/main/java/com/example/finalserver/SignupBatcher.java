@@ -0,0 +1,243 @@
+package com.example.finalserver;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind pipeline for signups. Requests from many handlers are collected for a short
+ * window and written as one existence check plus one JDBC batch in a single transaction,
+ * then each caller's future is completed with its own outcome.
+ * <p>
+ * The existence check binds names into one of a few fixed {@code IN} list sizes, padding with
+ * a repeated name, so each pooled connection caches at most {@link #LOOKUP_SIZES} statements.
+ * Names are compared ignoring case, like the lookup does under the column's default collation,
+ * so "Bob" is refused when "bob" exists rather than inserted next to it.
+ */
+public class SignupBatcher {
+    public enum Result {
+        CREATED, USERNAME_EXISTS, FAILED
+    }
+
+    private static final String INSERT_USER = "INSERT INTO users (username, password) VALUES (?, ?)";
+    // Larger batches are looked up in chunks of the last size
+    private static final int[] LOOKUP_SIZES = {1, 8, 32, 128};
+    private static final String[] FIND_EXISTING = new String[LOOKUP_SIZES.length];
+
+    static {
+        for (int i = 0; i < LOOKUP_SIZES.length; i++) {
+            StringBuilder sql = new StringBuilder("SELECT username FROM users WHERE username IN (");
+            for (int j = 0; j < LOOKUP_SIZES[i]; j++) {
+                sql.append(j == 0 ? "?" : ", ?");
+            }
+            FIND_EXISTING[i] = sql.append(")").toString();
+        }
+    }
+
+    private final ConnectionPool connectionPool;
+    private final ServerMetrics metrics;
+    private final int maxBatchSize;
+    private final long windowNanos;
+    private final BlockingQueue<Signup> pending = new LinkedBlockingQueue<>();
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    public SignupBatcher(ConnectionPool connectionPool, ServerMetrics metrics, int maxBatchSize, long windowMillis) {
+        this.connectionPool = connectionPool;
+        this.metrics = metrics;
+        this.maxBatchSize = maxBatchSize;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.worker = new Thread(this::run, "signup-batcher");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public CompletableFuture<Result> submit(String username, String password) {
+        Signup signup = new Signup(username, password);
+        if (!running) {
+            signup.result.complete(Result.FAILED);
+        } else {
+            pending.add(signup);
+            // The worker may have stopped after the check and drained the queue already
+            if (!running && pending.remove(signup)) {
+                signup.result.complete(Result.FAILED);
+            }
+        }
+        return signup.result;
+    }
+
+    public void close() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void run() {
+        List<Signup> batch = new ArrayList<>(maxBatchSize);
+        try {
+            while (running) {
+                batch.add(pending.take());
+                // Keep collecting until the window closes or the batch is full
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    Signup next = remaining > 0 ? pending.poll(remaining, TimeUnit.NANOSECONDS) : pending.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                try {
+                    writeBatch(batch);
+                } catch (RuntimeException e) {
+                    // Fail this batch only; the worker goes on with the next one
+                    e.printStackTrace();
+                    for (Signup signup : batch) {
+                        signup.result.complete(Result.FAILED);
+                    }
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // Nothing drains the queue from here on, so later submits fail at once
+            running = false;
+            for (Signup signup : batch) {
+                signup.result.complete(Result.FAILED);
+            }
+            Signup signup;
+            while ((signup = pending.poll()) != null) {
+                signup.result.complete(Result.FAILED);
+            }
+        }
+    }
+
+    private void writeBatch(List<Signup> batch) {
+        // Two signups for the same name in one batch: the first one wins
+        List<Signup> candidates = new ArrayList<>(batch.size());
+        Set<String> names = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        for (Signup signup : batch) {
+            if (names.add(signup.username)) {
+                candidates.add(signup);
+            } else {
+                signup.result.complete(Result.USERNAME_EXISTS);
+            }
+        }
+
+        ConnectionPool.PooledConnection pooled = null;
+        boolean failed = false;
+        try {
+            pooled = connectionPool.borrow();
+            Connection connection = pooled.connection();
+            connection.setAutoCommit(false);
+            try {
+                Set<String> existing = findExisting(pooled, candidates);
+                PreparedStatement insert = pooled.prepare(INSERT_USER);
+                List<Signup> inserted = new ArrayList<>(candidates.size());
+                for (Signup signup : candidates) {
+                    if (existing.contains(signup.username)) {
+                        signup.result.complete(Result.USERNAME_EXISTS);
+                        continue;
+                    }
+                    insert.setString(1, signup.username);
+                    insert.setString(2, signup.password);
+                    insert.addBatch();
+                    inserted.add(signup);
+                }
+                long start = System.nanoTime();
+                if (!inserted.isEmpty()) {
+                    insert.executeBatch();
+                }
+                connection.commit();
+                metrics.query(ServerMetrics.Query.CREATE_USER, System.nanoTime() - start);
+                for (Signup signup : inserted) {
+                    signup.result.complete(Result.CREATED);
+                }
+            } catch (SQLException e) {
+                // Usually a name taken by another writer between our check and insert; fall back
+                // to one autocommit insert per signup so each caller gets an exact answer
+                connection.rollback();
+                connection.setAutoCommit(true);
+                writeIndividually(pooled, candidates);
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            failed = true;
+            e.printStackTrace();
+        } finally {
+            connectionPool.release(pooled, failed);
+            for (Signup signup : candidates) {
+                signup.result.complete(Result.FAILED);
+            }
+        }
+    }
+
+    private Set<String> findExisting(ConnectionPool.PooledConnection pooled, List<Signup> candidates) throws SQLException {
+        long start = System.nanoTime();
+        Set<String> existing = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        int largest = LOOKUP_SIZES[LOOKUP_SIZES.length - 1];
+        for (int from = 0; from < candidates.size(); from += largest) {
+            int count = Math.min(largest, candidates.size() - from);
+            int shape = 0;
+            while (LOOKUP_SIZES[shape] < count) {
+                shape++;
+            }
+
+            PreparedStatement statement = pooled.prepare(FIND_EXISTING[shape]);
+            for (int i = 0; i < LOOKUP_SIZES[shape]; i++) {
+                // Unused slots repeat the chunk's last name, which matches nothing new
+                statement.setString(i + 1, candidates.get(from + Math.min(i, count - 1)).username);
+            }
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    existing.add(resultSet.getString(1));
+                }
+            }
+        }
+        metrics.query(ServerMetrics.Query.USER_EXISTS, System.nanoTime() - start);
+        return existing;
+    }
+
+    private void writeIndividually(ConnectionPool.PooledConnection pooled, List<Signup> candidates) throws SQLException {
+        Set<String> existing = findExisting(pooled, candidates);
+        PreparedStatement insert = pooled.prepare(INSERT_USER);
+        for (Signup signup : candidates) {
+            if (signup.result.isDone()) {
+                continue;
+            }
+            if (existing.contains(signup.username)) {
+                signup.result.complete(Result.USERNAME_EXISTS);
+                continue;
+            }
+            try {
+                insert.setString(1, signup.username);
+                insert.setString(2, signup.password);
+                signup.result.complete(insert.executeUpdate() > 0 ? Result.CREATED : Result.FAILED);
+            } catch (SQLException e) {
+                e.printStackTrace();
+                signup.result.complete(Result.FAILED);
+            }
+        }
+    }
+
+    private static final class Signup {
+        private final String username;
+        private final String password;
+        private final CompletableFuture<Result> result = new CompletableFuture<>();
+
+        private Signup(String username, String password) {
+            this.username = username;
+            this.password = password;
+        }
+    }
+}
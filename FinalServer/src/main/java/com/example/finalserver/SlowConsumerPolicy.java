@@ -0,0 +1,36 @@
+package com.example.finalserver;
+
+import java.util.Locale;
+
+/**
+ * What a connection does with new traffic once its client stops keeping up, selected with
+ * {@code -Dchat.slowConsumer.policy=drop-newest|drop-oldest|disconnect}.
+ */
+public enum SlowConsumerPolicy {
+    // A full queue refuses the new frame; the client misses the latest traffic
+    DROP_NEWEST,
+    // A full queue discards its oldest unsent frame to make room; the client misses older traffic
+    DROP_OLDEST,
+    // Like DROP_NEWEST, but a client whose backlog stays above the high-water mark for
+    // chat.slowConsumer.graceMillis is disconnected and evicted
+    DISCONNECT;
+
+    public static final SlowConsumerPolicy CONFIGURED = parse(System.getProperty("chat.slowConsumer.policy", "disconnect"));
+    public static final long GRACE_NANOS = Long.getLong("chat.slowConsumer.graceMillis", 5000) * 1_000_000L;
+    // Share of a connection's queue limit that counts as falling behind
+    public static final int HIGH_WATER_PERCENT = Integer.getInteger("chat.slowConsumer.highWaterPercent", 75);
+
+    // The backlog at which a connection with the given limit counts as falling behind
+    public static long highWater(long limit) {
+        return Math.max(1, limit * Math.min(100, Math.max(1, HIGH_WATER_PERCENT)) / 100);
+    }
+
+    public static SlowConsumerPolicy parse(String value) {
+        try {
+            return valueOf(value.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown slow consumer policy " + value + ", using disconnect");
+            return DISCONNECT;
+        }
+    }
+}
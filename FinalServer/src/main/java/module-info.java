@@ -10,6 +10,7 @@ module com.example.finalserver {
     requires org.kordamp.bootstrapfx.core;
     requires eu.hansolo.tilesfx;
     requires java.sql;
+    requires java.management;
 
     opens com.example.finalserver to javafx.fxml;
     exports com.example.finalserver;
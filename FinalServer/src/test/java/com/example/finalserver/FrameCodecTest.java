@@ -0,0 +1,245 @@
+package com.example.finalserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrameCodecTest {
+    // Comfortably past chat.compression.threshold, and repetitive enough to compress
+    private static final String LONG_TEXT = "the quick brown fox jumps over the lazy dog ".repeat(12);
+
+    @Test
+    void encodesChatAsSenderPrefixedFrame() {
+        ByteBuffer frame = MessageFrame.chat("alice", "hi").binaryBuffer();
+        assertEquals(FrameProtocol.CHAT_FROM, frame.get());
+        assertEquals(2 + 5 + 2, frame.getInt());
+        assertEquals(5, frame.getShort());
+        assertEquals("alice", text(frame, 5));
+        assertEquals("hi", text(frame, 2));
+        assertFalse(frame.hasRemaining());
+    }
+
+    @Test
+    void encodesServerLineAsMessageFrame() {
+        ByteBuffer frame = MessageFrame.of("Welcome").binaryBuffer();
+        assertEquals(FrameProtocol.MESSAGE, frame.get());
+        assertEquals(7, frame.getInt());
+        assertEquals("Welcome", text(frame, 7));
+    }
+
+    @Test
+    void readerReassemblesFramesArrivingAByteAtATime() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        writeFrame(stream, FrameProtocol.COMMAND, "busy".getBytes(StandardCharsets.UTF_8));
+        writeFrame(stream, FrameProtocol.CHAT, "hello".getBytes(StandardCharsets.UTF_8));
+
+        ClientReader reader = new ClientReader(new TrickleInputStream(stream.toByteArray()));
+        reader.switchToBinary();
+        InboundMessage command = reader.read();
+        assertEquals(FrameProtocol.COMMAND, command.opcode());
+        assertEquals("busy", command.text());
+        InboundMessage chat = reader.read();
+        assertTrue(chat.isChat());
+        assertEquals("hello", chat.text());
+        assertNull(reader.read());
+    }
+
+    @Test
+    void readerSwitchesToFramesAfterTheHandshakeLine() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write((FrameProtocol.BINARY_HELLO + "\r\n").getBytes(StandardCharsets.UTF_8));
+        writeFrame(stream, FrameProtocol.HELLO, "alice".getBytes(StandardCharsets.UTF_8));
+
+        ClientReader reader = new ClientReader(new TrickleInputStream(stream.toByteArray()));
+        assertEquals(FrameProtocol.BINARY_HELLO, reader.readLine());
+        reader.switchToBinary();
+        InboundMessage hello = reader.read();
+        assertEquals(FrameProtocol.HELLO, hello.opcode());
+        assertEquals("alice", hello.text());
+    }
+
+    @Test
+    void readerTreatsTruncatedFrameAsEndOfStream() throws IOException {
+        ByteBuffer partial = ByteBuffer.allocate(FrameProtocol.HEADER_LENGTH + 4);
+        partial.put(FrameProtocol.CHAT).putInt(10).put("hell".getBytes(StandardCharsets.UTF_8));
+        ClientReader reader = new ClientReader(new ByteArrayInputStream(partial.array()));
+        reader.switchToBinary();
+        assertNull(reader.read());
+    }
+
+    @Test
+    void readerRejectsOversizedFrame() {
+        ByteBuffer header = ByteBuffer.allocate(FrameProtocol.HEADER_LENGTH);
+        header.put(FrameProtocol.CHAT).putInt(FrameProtocol.MAX_PAYLOAD + 1);
+        ClientReader reader = new ClientReader(new ByteArrayInputStream(header.array()));
+        reader.switchToBinary();
+        assertThrows(IOException.class, reader::read);
+    }
+
+    @Test
+    void decoderInflatesAClientDeflateStream() throws IOException {
+        // Like the client: one raw deflate stream, sync flushed after every frame
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < 3; i++) {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            writeFrame(frame, FrameProtocol.CHAT, (LONG_TEXT + i).getBytes(StandardCharsets.UTF_8));
+            deflater.setInput(frame.toByteArray());
+            byte[] output = new byte[frame.size() + 64];
+            int length = deflater.deflate(output, 0, output.length, Deflater.SYNC_FLUSH);
+            writeFrame(stream, FrameProtocol.DEFLATED, Arrays.copyOf(output, length));
+        }
+        deflater.end();
+
+        ClientReader reader = new ClientReader(new TrickleInputStream(stream.toByteArray()));
+        reader.switchToBinary(true);
+        for (int i = 0; i < 3; i++) {
+            InboundMessage message = reader.read();
+            assertTrue(message.isChat());
+            assertEquals(LONG_TEXT + i, message.text());
+        }
+        assertNull(reader.read());
+        reader.close();
+    }
+
+    @Test
+    void decoderRejectsCompressedFrameThatWasNotNegotiated() {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        writeFrame(stream, FrameProtocol.DEFLATED, new byte[] {1, 2, 3});
+        ClientReader reader = new ClientReader(new ByteArrayInputStream(stream.toByteArray()));
+        reader.switchToBinary();
+        assertThrows(IOException.class, reader::read);
+    }
+
+    @Test
+    void encoderStreamInflatesBackToEachFrameInOrder() throws DataFormatException {
+        FrameCompression.Encoder encoder = new FrameCompression.Encoder();
+        Inflater inflater = new Inflater(true);
+        int firstLength = 0;
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer plain = MessageFrame.chat("alice", LONG_TEXT + i).binaryBuffer();
+            ByteBuffer compressed = encoder.deflate(plain.duplicate());
+            assertEquals(FrameProtocol.DEFLATED_STREAM, compressed.get());
+            assertEquals(compressed.remaining() - 4, compressed.getInt());
+            byte[] payload = new byte[compressed.remaining()];
+            compressed.get(payload);
+            if (i == 0) {
+                firstLength = payload.length;
+            } else {
+                // Later frames are compressed against the earlier ones still in the window
+                assertTrue(payload.length < firstLength / 2, "frame " + i + " took " + payload.length + " bytes");
+            }
+            assertArrayEquals(bytes(plain), inflate(inflater, payload, plain.remaining()));
+        }
+        inflater.end();
+        encoder.close();
+    }
+
+    @Test
+    void encoderOnlyWantsLargeFramesWithASmallFanOut() {
+        FrameCompression.Encoder encoder = new FrameCompression.Encoder();
+        assertFalse(encoder.wants(MessageFrame.of("short")));
+        MessageFrame large = MessageFrame.of(LONG_TEXT);
+        assertTrue(encoder.wants(large));
+        large.setFanOut(FrameCompression.SHARED_FAN_OUT);
+        assertFalse(encoder.wants(large));
+        encoder.close();
+    }
+
+    @Test
+    void sharedDeflatedFrameInflatesOnItsOwn() throws DataFormatException {
+        MessageFrame frame = MessageFrame.of(LONG_TEXT);
+        ByteBuffer compressed = frame.deflatedBuffer();
+        assertEquals(FrameProtocol.DEFLATED, compressed.get());
+        byte[] payload = new byte[compressed.getInt()];
+        compressed.get(payload);
+        assertFalse(compressed.hasRemaining());
+
+        ByteBuffer plain = frame.binaryBuffer();
+        Inflater inflater = new Inflater(true);
+        assertArrayEquals(bytes(plain), inflate(inflater, payload, plain.remaining()));
+        inflater.end();
+    }
+
+    @Test
+    void smallFrameIsNotCompressed() {
+        MessageFrame frame = MessageFrame.of("short");
+        assertEquals(frame.binaryBuffer(), frame.deflatedBuffer());
+        assertEquals(FrameProtocol.MESSAGE, frame.deflatedBuffer().get());
+    }
+
+    private static void writeFrame(ByteArrayOutputStream out, byte opcode, byte[] payload) {
+        out.write(opcode);
+        out.writeBytes(ByteBuffer.allocate(4).putInt(0, payload.length).array());
+        out.writeBytes(payload);
+    }
+
+    private static String text(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    // Inflates one sync-flushed frame's worth of a stream, which must come out whole
+    private static byte[] inflate(Inflater inflater, byte[] payload, int expectedLength) throws DataFormatException {
+        inflater.setInput(payload);
+        byte[] output = new byte[expectedLength + 64];
+        int length = 0;
+        int n;
+        while ((n = inflater.inflate(output, length, output.length - length)) > 0) {
+            length += n;
+        }
+        assertTrue(inflater.needsInput());
+        return Arrays.copyOf(output, length);
+    }
+
+    /** Hands out at most one byte per read, like a socket delivering a frame in pieces. */
+    private static final class TrickleInputStream extends InputStream {
+        private final byte[] bytes;
+        private int position;
+
+        TrickleInputStream(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() {
+            return position < bytes.length ? bytes[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            int b = read();
+            if (b == -1) {
+                return -1;
+            }
+            buffer[offset] = (byte) b;
+            return 1;
+        }
+    }
+}
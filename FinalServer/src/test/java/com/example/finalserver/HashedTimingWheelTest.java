@@ -0,0 +1,101 @@
+package com.example.finalserver;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HashedTimingWheelTest {
+    // 8 buckets of 10 ms, so anything past 80 ms goes round the wheel at least once
+    private static final long TICK_MILLIS = 10;
+    private static final int WHEEL_SIZE = 8;
+
+    private HashedTimingWheel wheel;
+
+    @BeforeEach
+    void setUp() {
+        wheel = new HashedTimingWheel("test-wheel", TICK_MILLIS, TimeUnit.MILLISECONDS, WHEEL_SIZE);
+    }
+
+    @AfterEach
+    void tearDown() {
+        wheel.stop();
+    }
+
+    @Test
+    void runsTaskNoEarlierThanItsDelay() throws InterruptedException {
+        assertRunsAfter(50);
+    }
+
+    @Test
+    void timerMoreThanOneLapAwayWaitsForItsOwnTick() throws InterruptedException {
+        assertRunsAfter(TICK_MILLIS * WHEEL_SIZE * 2 + 35);
+    }
+
+    @Test
+    void runsTasksInDeadlineOrder() throws InterruptedException {
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        for (int delay : new int[] {90, 30, 60}) {
+            wheel.schedule(() -> {
+                order.add(delay);
+                done.countDown();
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(List.of(30, 60, 90), order);
+    }
+
+    @Test
+    void cancelledTaskNeverRuns() throws InterruptedException {
+        AtomicBoolean ran = new AtomicBoolean();
+        HashedTimingWheel.Timeout timeout = wheel.schedule(() -> ran.set(true), 30, TimeUnit.MILLISECONDS);
+        timeout.cancel();
+        assertTrue(timeout.isCancelled());
+
+        // A later timer firing shows the wheel has moved past the cancelled one
+        CountDownLatch later = new CountDownLatch(1);
+        wheel.schedule(later::countDown, 100, TimeUnit.MILLISECONDS);
+        assertTrue(later.await(2, TimeUnit.SECONDS));
+        assertFalse(ran.get());
+    }
+
+    @Test
+    void failingTaskDoesNotStopTheWheel() throws InterruptedException {
+        wheel.schedule(() -> {
+            throw new IllegalStateException("expected by the test");
+        }, 10, TimeUnit.MILLISECONDS);
+        CountDownLatch next = new CountDownLatch(1);
+        wheel.schedule(next::countDown, 40, TimeUnit.MILLISECONDS);
+        assertTrue(next.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void overdueTimerRunsOnTheNextTick() throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(1);
+        wheel.schedule(ran::countDown, -5, TimeUnit.MILLISECONDS);
+        assertTrue(ran.await(1, TimeUnit.SECONDS));
+    }
+
+    private void assertRunsAfter(long delayMillis) throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(1);
+        long[] firedAt = new long[1];
+        long start = System.nanoTime();
+        wheel.schedule(() -> {
+            firedAt[0] = System.nanoTime();
+            ran.countDown();
+        }, delayMillis, TimeUnit.MILLISECONDS);
+        assertTrue(ran.await(2, TimeUnit.SECONDS));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(firedAt[0] - start);
+        assertTrue(elapsedMillis >= delayMillis, "fired after " + elapsedMillis + " ms");
+    }
+}
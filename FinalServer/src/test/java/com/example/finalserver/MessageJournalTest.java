@@ -0,0 +1,239 @@
+package com.example.finalserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageJournalTest {
+    private static final int SEGMENT_BYTES = 4096;
+    // Long enough that maintenance never runs during a test
+    private static final long FORCE_MILLIS = 60_000;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsBackAppendedFramesOfTheRequestedRooms() throws IOException {
+        try (MessageJournal journal = open(SEGMENT_BYTES)) {
+            MessageFrame first = MessageFrame.chat("alice", "one");
+            assertEquals(1, journal.append("a", first));
+            assertEquals(1, first.sequence());
+            journal.append("b", MessageFrame.chat("bob", "two"));
+            journal.append("a", MessageFrame.of("three"));
+
+            List<MessageFrame> frames = new ArrayList<>();
+            assertEquals(3, journal.read(0, 0, Set.of("a"), 10, frames::add));
+            assertEquals(List.of("alice: one", "three"), texts(frames));
+            assertEquals(List.of(1L, 3L), sequences(frames));
+
+            frames.clear();
+            journal.read(1, 0, Set.of("a", "b"), 10, frames::add);
+            assertEquals(List.of("bob: two", "three"), texts(frames));
+        }
+    }
+
+    @Test
+    void recordsAMultiRoomBroadcastOnce() throws IOException {
+        try (MessageJournal journal = open(SEGMENT_BYTES)) {
+            journal.append(List.of("lobby", "r1", "r2"), MessageFrame.of("alice has left the chat room."));
+            journal.append("r10", MessageFrame.of("elsewhere"));
+
+            List<MessageFrame> frames = new ArrayList<>();
+            journal.read(0, 0, Set.of("r1", "r2"), 10, frames::add);
+            assertEquals(List.of("alice has left the chat room."), texts(frames));
+
+            frames.clear();
+            journal.read(0, 0, Set.of("r2"), 10, frames::add);
+            assertEquals(1, frames.size());
+
+            // Names are matched whole, not as prefixes of one another
+            frames.clear();
+            journal.read(0, 0, Set.of("r", "r10"), 10, frames::add);
+            assertEquals(List.of("elsewhere"), texts(frames));
+        }
+    }
+
+    @Test
+    void continuesTheSequenceAfterReopening() throws IOException {
+        String id;
+        try (MessageJournal journal = open(SEGMENT_BYTES)) {
+            id = journal.id();
+            journal.append("a", MessageFrame.of("one"));
+            journal.append("a", MessageFrame.of("two"));
+        }
+        try (MessageJournal journal = open(SEGMENT_BYTES)) {
+            assertEquals(id, journal.id());
+            assertEquals(2, journal.lastSequence());
+            assertEquals(3, journal.append("a", MessageFrame.of("three")));
+            assertEquals(List.of("one", "two", "three"), readAll(journal));
+        }
+    }
+
+    @Test
+    void dropsARecordWhoseBytesWereNotAllWritten() throws IOException {
+        try (MessageJournal journal = open(SEGMENT_BYTES)) {
+            journal.append("a", MessageFrame.of("one"));
+            journal.append("a", MessageFrame.of("two"));
+            journal.append("a", MessageFrame.of("three"));
+        }
+        // Flip the last byte of the third record, as if the body never reached the disk
+        try (FileChannel segment = FileChannel.open(firstSegment(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            int position = recordPosition(segment, 2);
+            int length = readInt(segment, position);
+            int last = position + MessageJournal.RECORD_HEADER + length - 1;
+            ByteBuffer original = ByteBuffer.allocate(1);
+            segment.read(original, last);
+            segment.write(ByteBuffer.wrap(new byte[] {(byte) ~original.get(0)}), last);
+        }
+
+        try (MessageJournal journal = open(SEGMENT_BYTES)) {
+            assertEquals(2, journal.lastSequence());
+            assertEquals(3, journal.append("a", MessageFrame.of("again")));
+            assertEquals(List.of("one", "two", "again"), readAll(journal));
+        }
+    }
+
+    @Test
+    void ignoresAHalfWrittenHeaderAtTheTail() throws IOException {
+        try (MessageJournal journal = open(SEGMENT_BYTES)) {
+            journal.append("a", MessageFrame.of("one"));
+        }
+        // A plausible length with nothing after it
+        try (FileChannel segment = FileChannel.open(firstSegment(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment.write(ByteBuffer.allocate(4).putInt(0, 64), recordPosition(segment, 1));
+        }
+
+        try (MessageJournal journal = open(SEGMENT_BYTES)) {
+            assertEquals(1, journal.lastSequence());
+            journal.append("a", MessageFrame.of("two"));
+            assertEquals(List.of("one", "two"), readAll(journal));
+        }
+    }
+
+    @Test
+    void readsAcrossSegments() throws IOException {
+        List<String> expected = new ArrayList<>();
+        try (MessageJournal journal = open(256)) {
+            for (int i = 0; i < 40; i++) {
+                String text = "message " + i;
+                journal.append("a", MessageFrame.of(text));
+                expected.add(text);
+            }
+            assertEquals(expected, readAll(journal));
+        }
+        assertTrue(segmentCount() > 1);
+        try (MessageJournal journal = open(256)) {
+            assertEquals(40, journal.lastSequence());
+            assertEquals(expected, readAll(journal));
+        }
+    }
+
+    @Test
+    void rollsOverIntoThePreparedSegment() throws IOException, InterruptedException {
+        Path spare = directory.resolve(MessageJournal.SPARE_FILE);
+        try (MessageJournal journal = open(256)) {
+            awaitFile(spare);
+            int appended = 0;
+            while (segmentCount() < 2) {
+                journal.append("a", MessageFrame.of("message " + appended++));
+            }
+            // The spare became the new segment, and another one is prepared for the next roll
+            awaitFile(spare);
+            assertEquals(appended, readAll(journal).size());
+        }
+        assertTrue(Files.notExists(spare));
+    }
+
+    @Test
+    void refusesSendersTooLongForTheirLengthField() throws IOException {
+        try (MessageJournal journal = open(1 << 20)) {
+            assertEquals(-1, journal.append("a", MessageFrame.chat("x".repeat(MessageFrame.MAX_SENDER_BYTES + 1), "hi")));
+            assertEquals(1, journal.append("a", MessageFrame.chat("x".repeat(MessageFrame.MAX_SENDER_BYTES), "hi")));
+            assertEquals(1, readAll(journal).size());
+        }
+    }
+
+    @Test
+    void refusesADirectoryAlreadyInUse() throws IOException {
+        try (MessageJournal journal = open(SEGMENT_BYTES)) {
+            assertThrows(IOException.class, () -> open(SEGMENT_BYTES));
+        }
+    }
+
+    private long segmentCount() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(MessageJournal.SEGMENT_SUFFIX)).count();
+        }
+    }
+
+    private static void awaitFile(Path file) throws InterruptedException {
+        for (int i = 0; i < 200 && Files.notExists(file); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(Files.exists(file), file + " was not created");
+    }
+
+    private MessageJournal open(int segmentBytes) throws IOException {
+        return new MessageJournal(directory, segmentBytes, 1L << 30, Long.MAX_VALUE, FORCE_MILLIS);
+    }
+
+    private Path firstSegment() {
+        return directory.resolve(String.format("%020d%s", 1, MessageJournal.SEGMENT_SUFFIX));
+    }
+
+    // Where the record at the given index starts, following the length of each one before it
+    private static int recordPosition(FileChannel segment, int index) throws IOException {
+        int position = 0;
+        for (int i = 0; i < index; i++) {
+            position += MessageJournal.RECORD_HEADER + readInt(segment, position);
+        }
+        return position;
+    }
+
+    private static int readInt(FileChannel segment, int position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        segment.read(buffer, position);
+        return buffer.getInt(0);
+    }
+
+    private static List<String> readAll(MessageJournal journal) {
+        List<MessageFrame> frames = new ArrayList<>();
+        long after = 0;
+        while (after < journal.lastSequence()) {
+            long next = journal.read(after, 0, Set.of("a"), 10, frames::add);
+            assertTrue(next > after, "read made no progress after " + after);
+            after = next;
+        }
+        return texts(frames);
+    }
+
+    private static List<String> texts(List<MessageFrame> frames) {
+        List<String> texts = new ArrayList<>();
+        for (MessageFrame frame : frames) {
+            texts.add(frame.text());
+        }
+        return texts;
+    }
+
+    private static List<Long> sequences(List<MessageFrame> frames) {
+        List<Long> sequences = new ArrayList<>();
+        for (MessageFrame frame : frames) {
+            sequences.add(frame.sequence());
+        }
+        return sequences;
+    }
+}